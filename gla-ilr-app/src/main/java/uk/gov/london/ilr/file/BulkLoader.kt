@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.postgresql.PGConnection
+import org.postgresql.copy.PGCopyOutputStream
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.jdbc.core.ConnectionCallback
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter
+import org.springframework.jdbc.core.PreparedStatementSetter
+import org.springframework.stereotype.Component
+import java.io.OutputStreamWriter
+import java.io.Writer
+import java.math.BigDecimal
+import java.sql.PreparedStatement
+import java.sql.Timestamp
+import java.sql.Types
+import java.time.LocalDate
+import java.time.OffsetDateTime
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Writes rows straight to a table, bypassing JPA. Must be called inside the transaction the rows belong to.
+ */
+interface BulkLoader {
+
+    /**
+     * @param columns comma separated column names
+     * @param values returns the values of a row in the order of the columns; supported types are String,
+     * Int, Long, BigDecimal and LocalDate
+     */
+    fun <T> load(table: String, columns: String, rows: List<T>, values: (T) -> Array<Any?>)
+
+}
+
+@Component
+class BulkLoaderFactory(val jdbcTemplate: JdbcTemplate) {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    /**
+     * Set to false to always use batched inserts, even on PostgreSQL.
+     */
+    @Value("\${ilr.import.copy-enabled}")
+    var copyEnabled: Boolean = true
+
+    private val databaseProductName: String by lazy {
+        jdbcTemplate.execute(ConnectionCallback<String> { con -> con.metaData.databaseProductName })!!
+    }
+
+    fun newLoader(): BulkLoader {
+        return if (copyEnabled && isPostgres()) {
+            CopyBulkLoader(jdbcTemplate)
+        }
+        else {
+            log.debug("Using batched inserts for bulk loads on $databaseProductName")
+            BatchInsertBulkLoader(jdbcTemplate)
+        }
+    }
+
+    fun newUpserter(): BulkUpserter {
+        return BulkUpserter(jdbcTemplate, isPostgres())
+    }
+
+    fun isPostgres(): Boolean {
+        return databaseProductName == "PostgreSQL"
+    }
+
+}
+
+/**
+ * Streams rows to PostgreSQL with COPY ... FROM STDIN in CSV format. Rows are written to the COPY as they are
+ * rendered, through the driver's buffer, rather than rendered in full first.
+ */
+class CopyBulkLoader(private val jdbcTemplate: JdbcTemplate) : BulkLoader {
+
+    override fun <T> load(table: String, columns: String, rows: List<T>, values: (T) -> Array<Any?>) {
+        if (rows.isEmpty()) {
+            return
+        }
+
+        jdbcTemplate.execute(ConnectionCallback<Unit> { con ->
+            val copy = PGCopyOutputStream(con.unwrap(PGConnection::class.java), "copy $table ($columns) from stdin with (format csv)")
+            try {
+                val csv = OutputStreamWriter(copy, UTF_8)
+                for (row in rows) {
+                    val rowValues = values(row)
+                    for (i in rowValues.indices) {
+                        if (i > 0) {
+                            csv.write(','.toInt())
+                        }
+                        writeValue(csv, rowValues[i])
+                    }
+                    csv.write('\n'.toInt())
+                }
+                csv.close()
+            }
+            catch (e: Exception) {
+                if (copy.isActive) {
+                    copy.cancelCopy()
+                }
+                throw e
+            }
+        })
+    }
+
+    /**
+     * Nulls are written as an unquoted empty field and every string is quoted, so that an empty string is
+     * not read back as null.
+     */
+    private fun writeValue(csv: Writer, value: Any?) {
+        when (value) {
+            null -> return
+            is String -> {
+                csv.write('"'.toInt())
+                csv.write(value.replace("\"", "\"\""))
+                csv.write('"'.toInt())
+            }
+            is BigDecimal -> csv.write(value.toPlainString())
+            else -> csv.write(value.toString())
+        }
+    }
+
+}
+
+/**
+ * Portable fallback writing rows as JDBC batches of inserts.
+ */
+class BatchInsertBulkLoader(private val jdbcTemplate: JdbcTemplate) : BulkLoader {
+
+    override fun <T> load(table: String, columns: String, rows: List<T>, values: (T) -> Array<Any?>) {
+        if (rows.isEmpty()) {
+            return
+        }
+
+        val placeholders = columns.split(",").joinToString(", ") { "?" }
+        jdbcTemplate.batchUpdate("insert into $table ($columns) values ($placeholders)", rows, rows.size,
+                ParameterizedPreparedStatementSetter<T> { ps, row ->
+                    val rowValues = values(row)
+                    for (i in rowValues.indices) {
+                        setParameter(ps, i + 1, rowValues[i])
+                    }
+                })
+    }
+
+}
+
+/**
+ * Inserts rows, or updates the ones whose key is already in the table, with a single statement per chunk of
+ * rows: INSERT ... ON CONFLICT DO UPDATE on PostgreSQL and MERGE on H2. Rows with the same key are written once,
+ * with the values of the last of them, as saving them one after the other would.
+ */
+class BulkUpserter(private val jdbcTemplate: JdbcTemplate, private val postgres: Boolean) {
+
+    /**
+     * @param columns comma separated column names, see BulkLoader
+     * @param keyColumns comma separated names of the columns of the primary key
+     */
+    fun <T> upsert(table: String, columns: String, keyColumns: String, rows: List<T>, values: (T) -> Array<Any?>) {
+        if (rows.isEmpty()) {
+            return
+        }
+
+        val columnNames = columns.split(",").map { it.trim() }
+        val keyNames = keyColumns.split(",").map { it.trim() }
+        val keyIndexes = keyNames.map { columnNames.indexOf(it) }
+
+        val rowsByKey = LinkedHashMap<List<Any?>, Array<Any?>>()
+        for (row in rows) {
+            val rowValues = values(row)
+            val key = keyIndexes.map { rowValues[it] }
+            rowsByKey.remove(key)
+            rowsByKey[key] = rowValues
+        }
+
+        val rowPlaceholders = columnNames.joinToString(", ", "(", ")") { "?" }
+        for (chunk in rowsByKey.values.chunked(MAX_UPSERT_PARAMETERS / columnNames.size)) {
+            val rowsSql = chunk.joinToString(", ") { rowPlaceholders }
+            val sql = if (postgres) {
+                val updates = columnNames.filter { it !in keyNames }.joinToString { "$it = excluded.$it" }
+                "insert into $table ($columns) values $rowsSql on conflict ($keyColumns) do update set $updates"
+            }
+            else {
+                "merge into $table ($columns) key ($keyColumns) values $rowsSql"
+            }
+
+            jdbcTemplate.update(sql, PreparedStatementSetter { ps ->
+                var index = 1
+                for (rowValues in chunk) {
+                    for (value in rowValues) {
+                        setParameter(ps, index++, value)
+                    }
+                }
+            })
+        }
+    }
+
+}
+
+/**
+ * Well below the 32767 bind parameters PostgreSQL allows in one statement.
+ */
+private const val MAX_UPSERT_PARAMETERS = 30000
+
+private fun setParameter(ps: PreparedStatement, index: Int, value: Any?) {
+    when (value) {
+        null -> ps.setNull(index, Types.NULL)
+        is LocalDate -> ps.setDate(index, java.sql.Date.valueOf(value))
+        is OffsetDateTime -> ps.setTimestamp(index, Timestamp.from(value.toInstant()))
+        else -> ps.setObject(index, value)
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.apache.commons.io.input.CloseShieldInputStream
+import java.io.InputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.ZipInputStream
+
+private const val INFLATER_BUFFER_SIZE = 64 * 1024
+
+/**
+ * Uploads may be a gzip compressed CSV, named *.csv.gz, or a zip of CSV files. Both are inflated on the fly as
+ * the importers read them, never to disk.
+ */
+object CompressedUploads {
+
+    @JvmStatic
+    fun isGzip(fileName: String?): Boolean {
+        return fileName != null && fileName.toUpperCase().endsWith(".CSV.GZ")
+    }
+
+    @JvmStatic
+    fun isZip(fileName: String?): Boolean {
+        return fileName != null && fileName.toUpperCase().endsWith(".ZIP")
+    }
+
+    /**
+     * @return the name of the CSV file held in the given upload, which is the name without any .gz suffix
+     */
+    @JvmStatic
+    fun csvName(fileName: String): String {
+        return if (isGzip(fileName)) fileName.substring(0, fileName.length - 3) else fileName
+    }
+
+    fun decompress(inputStream: InputStream, gzipped: Boolean): InputStream {
+        return if (gzipped) GZIPInputStream(inputStream, INFLATER_BUFFER_SIZE) else inputStream
+    }
+
+    /**
+     * Reads the CSV files in a zip one after the other, passing each with the name it has in the zip minus any
+     * folders. Closing an entry's stream does not close the zip. Folders and other files are skipped.
+     */
+    fun forEachCsvEntry(inputStream: InputStream, action: (String, InputStream) -> Unit) {
+        val zip = ZipInputStream(inputStream)
+        while (true) {
+            val entry = zip.nextEntry ?: break
+            val name = entry.name.substringAfterLast('/')
+            if (!entry.isDirectory && !entry.name.startsWith("__MACOSX/") && csvName(name).toUpperCase().endsWith(".CSV")) {
+                action(name, CloseShieldInputStream(zip))
+            }
+            zip.closeEntry()
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import uk.gov.london.common.CSVFile
+import java.math.BigDecimal
+import java.time.LocalDate
+
+/**
+ * Header row of a CSV file, mapping each column name to its position.
+ */
+class CsvColumns(headers: Collection<String>) {
+
+    val names: List<String> = headers.toList()
+
+    private val indexes: Map<String, Int> = names.withIndex().associate { it.value to it.index }
+
+    fun size() = names.size
+
+    /**
+     * @return the position of the column or -1 if the file has no such column
+     */
+    fun indexOf(name: String): Int {
+        return indexes[name] ?: -1
+    }
+
+}
+
+/**
+ * Immutable copy of a single CSV row. Unlike CSVFile, which always points at the current row, a CsvRow can be
+ * handed to another thread once it has been read.
+ *
+ * Values can be read by column name or, in the hot path of an import, by a column index resolved once per
+ * file with CsvColumns.indexOf. An index of -1 stands for a column the file does not have.
+ */
+class CsvRow(val rowIndex: Int, val columns: CsvColumns, private val values: Array<String?>) {
+
+    fun getString(column: String): String? {
+        return getString(columns.indexOf(column))
+    }
+
+    fun getString(index: Int): String? {
+        return if (index < 0) null else values[index]
+    }
+
+    fun getStringIfPresent(column: String): String? {
+        return getString(column)
+    }
+
+    fun getInteger(column: String): Int {
+        return getInteger(columns.indexOf(column))
+    }
+
+    fun getInteger(index: Int): Int {
+        val value = FieldDecoders.decodeInt(getString(index))
+        if (value == MISSING_INT || value == INVALID_INT) {
+            throw invalidValue(index)
+        }
+        return value
+    }
+
+    fun getIntegerOrNull(column: String): Int? {
+        return getIntegerOrNull(columns.indexOf(column))
+    }
+
+    /**
+     * @return the value, or null if the cell is blank
+     */
+    fun getIntegerOrNull(index: Int): Int? {
+        val value = FieldDecoders.decodeInt(getString(index))
+        return when (value) {
+            MISSING_INT -> null
+            INVALID_INT -> throw invalidValue(index)
+            else -> value
+        }
+    }
+
+    fun getIntegerIfPresent(column: String): Int? {
+        return getIntegerOrNull(column)
+    }
+
+    fun getCurrencyValue(column: String): BigDecimal? {
+        return getCurrencyValue(columns.indexOf(column))
+    }
+
+    fun getCurrencyValue(index: Int): BigDecimal? {
+        val amount = FieldDecoders.decodeAmount(getString(index))
+        return when (amount) {
+            MISSING_AMOUNT -> null
+            INVALID_AMOUNT -> throw invalidValue(index)
+            else -> FieldDecoders.toBigDecimal(amount)
+        }
+    }
+
+    fun getPence(column: String): Long? {
+        return getPence(columns.indexOf(column))
+    }
+
+    /**
+     * @return the amount in the cell in pence, see Money.parse, or null if the cell is blank
+     */
+    fun getPence(index: Int): Long? {
+        val pence = Money.parse(getString(index))
+        return when (pence) {
+            MISSING_AMOUNT -> null
+            INVALID_AMOUNT -> throw invalidValue(index)
+            else -> pence
+        }
+    }
+
+    /**
+     * @return the d/M/yyyy date in the cell, or null if the cell is blank
+     */
+    fun getDayMonthYearDate(index: Int): LocalDate? {
+        return toLocalDate(index, FieldDecoders.decodeDayMonthYear(getString(index)))
+    }
+
+    /**
+     * @return the yyyy-MM-dd date in the cell, or null if the cell is blank
+     */
+    fun getIsoDate(index: Int): LocalDate? {
+        return toLocalDate(index, FieldDecoders.decodeIsoDate(getString(index)))
+    }
+
+    private fun toLocalDate(index: Int, epochDay: Long): LocalDate? {
+        return when (epochDay) {
+            MISSING_DATE -> null
+            INVALID_DATE -> throw invalidValue(index)
+            else -> LocalDate.ofEpochDay(epochDay)
+        }
+    }
+
+    /**
+     * @return the raw values of this row in the order of the given column names, with null for absent columns
+     */
+    fun valuesFor(columnNames: Collection<String>): Map<String, String?> {
+        return columnNames.associateWith { getString(it) }
+    }
+
+    private fun invalidValue(index: Int): IllegalArgumentException {
+        val columnName = if (index < 0) "missing column" else columns.names[index]
+        return IllegalArgumentException("invalid $columnName value '${getString(index)}' at row $rowIndex")
+    }
+
+}
+
+/**
+ * Returns a reader function over the remaining rows of the CSV file, copying each row into a CsvRow. The
+ * function returns null once the file is exhausted. Pass the columns in when indexes have already been
+ * resolved against them, and the resolved indexes as copied to copy only those cells, the others reading as
+ * blank; by default every cell is copied.
+ *
+ * @param firstRow the number of rows already read from the file, such as those skipped to resume an import, so
+ * that row numbers in errors count from the start of the file
+ */
+fun rowReader(csvFile: CSVFile, columns: CsvColumns = CsvColumns(csvFile.headers), copied: IntArray? = null, firstRow: Int = 0): () -> CsvRow? {
+    val copiedIndexes = (copied ?: IntArray(columns.size()) { it }).filter { it >= 0 }.distinct().toIntArray()
+    val copiedNames = copiedIndexes.map { columns.names[it] }.toTypedArray()
+    var rowIndex = firstRow
+    return {
+        if (csvFile.nextRow()) {
+            val values = arrayOfNulls<String>(columns.size())
+            for (i in copiedIndexes.indices) {
+                values[copiedIndexes[i]] = csvFile.getString(copiedNames[i])
+            }
+            CsvRow(++rowIndex, columns, values)
+        }
+        else {
+            null
+        }
+    }
+}
@@ -14,7 +14,7 @@ const val LRN = "Learner reference number"
 const val UKPRN = "UKPRN"
 
 enum class DataImportStatus {
-    PROCESSING, COMPLETE, FAILED
+    QUEUED, PROCESSING, COMPLETE, FAILED, CANCELLED
 }
 
 @Entity
@@ -41,8 +41,27 @@ data class DataImport(
 
         var period: Int? = null,
 
+        /**
+         * Rows committed so far; an interrupted import resumes after this many rows.
+         */
         var rowsProcessed: Int? = null,
 
+        /**
+         * Local copy of the upload, kept while the import can be resumed.
+         */
+        var spoolFile: String? = null,
+
+        /**
+         * Queued imports with a higher priority are started first.
+         */
+        var priority: Int = 0,
+
+        /**
+         * Host name of the node which last started the import, so that it can pick up the imports it was running
+         * if it is stopped part way through.
+         */
+        var processingNode: String? = null,
+
         var lastExportDate: OffsetDateTime? = null,
 
         @Transient
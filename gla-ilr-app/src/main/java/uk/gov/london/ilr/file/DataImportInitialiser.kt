@@ -65,6 +65,7 @@ class DataImportInitialiser(@Autowired val dataImportRepository: DataImportRepos
         jdbcTemplate.execute("delete from learner")
         jdbcTemplate.execute("delete from learning_delivery")
         jdbcTemplate.execute("delete from earning_period")
+        jdbcTemplate.execute("delete from earning_profile")
         jdbcTemplate.execute("delete from learning_aim")
         jdbcTemplate.execute("delete from supplementary_data")
     }
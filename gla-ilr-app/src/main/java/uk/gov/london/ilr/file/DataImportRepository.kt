@@ -1,11 +1,42 @@
 package uk.gov.london.ilr.file
 
 import org.springframework.data.jpa.repository.JpaRepository
+import org.springframework.data.jpa.repository.Modifying
 import org.springframework.data.jpa.repository.Query
+import org.springframework.transaction.annotation.Transactional
 
 interface DataImportRepository: JpaRepository<DataImport, Int> {
     fun findAllByOrderByCreatedOnDesc(): List<DataImport>
 
+    fun findAllByStatusOrderByPriorityDescIdAsc(status: DataImportStatus): List<DataImport>
+
+    fun findAllByStatusInOrderByPriorityDescIdAsc(statuses: Collection<DataImportStatus>): List<DataImport>
+
+    /**
+     * Moves an import from one status to another, unless something else changed its status first.
+     *
+     * @return 1 if the status was changed, 0 otherwise
+     */
+    @Transactional
+    @Modifying
+    @Query("update DataImport d set d.status = ?3 where d.id = ?1 and d.status = ?2")
+    fun updateStatus(id: Int, from: DataImportStatus, to: DataImportStatus): Int
+
+    /**
+     * Moves an import from one status to another and records the node doing so, unless something else changed
+     * its status first.
+     *
+     * @return 1 if the status was changed, 0 otherwise
+     */
+    @Transactional
+    @Modifying
+    @Query("update DataImport d set d.status = ?3, d.processingNode = ?4 where d.id = ?1 and d.status = ?2")
+    fun updateStatus(id: Int, from: DataImportStatus, to: DataImportStatus, processingNode: String?): Int
+
+    fun findAllByStatusAndProcessingNode(status: DataImportStatus, processingNode: String?): List<DataImport>
+
+    fun countByImportTypeAndAcademicYearAndIdGreaterThan(importType: DataImportType, academicYear: Int, id: Int): Long
+
     @Query("select * from data_import where created_by = ?1 and import_type = ?2 order by created_on desc LIMIT 1", nativeQuery = true)
     fun findLatestUploadByUserAndType(user: String, type: String): DataImport?
 }
@@ -45,6 +45,13 @@ class DataImportService @Autowired constructor(val auditService: AuditService,
         return dataImportRepository.save(record)
     }
 
+    /**
+     * @return true if an import of the same type and year was started after the given one
+     */
+    fun hasNewerImport(dataImport: DataImport): Boolean {
+        return dataImportRepository.countByImportTypeAndAcademicYearAndIdGreaterThan(dataImport.importType!!, dataImport.academicYear!!, dataImport.id!!) > 0
+    }
+
     fun getLatestImportForUser(user: String, fileType: String) : DataImport? {
         return dataImportRepository.findLatestUploadByUserAndType(user, fileType)
     }
@@ -66,6 +66,7 @@ public enum DataImportType {
     }
 
     public static DataImportType getTypeByFilename(String filename) {
+        filename = CompressedUploads.csvName(filename);
         if (!filename.toUpperCase().endsWith(".CSV")) {
             throw new RuntimeException("Upload failed: File must be in CSV format, to do this save an excel file as a .CSV");
         }
@@ -33,6 +33,7 @@ public class ESFMonthlyRecordFile {
     public static ESFMonthlyRecordFile parse(String name) {
         ESFMonthlyRecordFile esfMonthlyRecordFile = new ESFMonthlyRecordFile();
         esfMonthlyRecordFile.name = name;
+        name = CompressedUploads.csvName(name);
         if (name.matches("SILR_+\\d{4}_\\d{2}+_LLDDHealthProblem(.csv)")) {
             esfMonthlyRecordFile.year = Integer.parseInt(name.substring(5, 9));
             esfMonthlyRecordFile.month = Integer.parseInt(name.substring(10, 12));
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import java.math.BigDecimal
+
+const val MISSING_INT = Int.MIN_VALUE
+const val INVALID_INT = Int.MIN_VALUE + 1
+
+const val MISSING_DATE = Long.MIN_VALUE
+const val INVALID_DATE = Long.MIN_VALUE + 1
+
+const val MISSING_AMOUNT = Long.MIN_VALUE
+const val INVALID_AMOUNT = Long.MIN_VALUE + 1
+
+private const val AMOUNT_SCALE_BITS = 4
+private const val AMOUNT_MAX_SCALE = (1 shl AMOUNT_SCALE_BITS) - 1
+private const val AMOUNT_MAX_UNSCALED = Long.MAX_VALUE shr (AMOUNT_SCALE_BITS + 1)
+
+/**
+ * Decoders for the value formats found in ILR files. They read the characters of a cell in place, without
+ * trimming or copying it, and report blank and malformed values through the MISSING_* and INVALID_* results
+ * instead of by throwing. Leading and trailing spaces are ignored.
+ */
+object FieldDecoders {
+
+    /**
+     * @return the value, MISSING_INT for a blank cell or INVALID_INT if the cell is not an int
+     */
+    fun decodeInt(value: CharSequence?): Int {
+        if (value == null) {
+            return MISSING_INT
+        }
+        var start = firstNonSpace(value)
+        val end = lastNonSpace(value) + 1
+        if (start >= end) {
+            return MISSING_INT
+        }
+
+        val negative = value[start] == '-'
+        if (negative || value[start] == '+') {
+            start++
+        }
+        if (start == end || end - start > 10) {
+            return INVALID_INT
+        }
+
+        var result = 0L
+        for (i in start until end) {
+            val digit = value[i] - '0'
+            if (digit < 0 || digit > 9) {
+                return INVALID_INT
+            }
+            result = result * 10 + digit
+        }
+        if (negative) {
+            result = -result
+        }
+        return if (result < Int.MIN_VALUE + 2 || result > Int.MAX_VALUE) INVALID_INT else result.toInt()
+    }
+
+    /**
+     * Decodes a d/M/yyyy date, as used by the occupancy report.
+     *
+     * @return the epoch day, MISSING_DATE for a blank cell or INVALID_DATE if the cell is not such a date
+     */
+    fun decodeDayMonthYear(value: CharSequence?): Long {
+        if (value == null) {
+            return MISSING_DATE
+        }
+        val start = firstNonSpace(value)
+        val end = lastNonSpace(value) + 1
+        if (start >= end) {
+            return MISSING_DATE
+        }
+
+        val firstSlash = indexOf(value, '/', start, end)
+        val secondSlash = indexOf(value, '/', firstSlash + 1, end)
+        if (firstSlash < 0 || secondSlash < 0 || end - secondSlash - 1 != 4) {
+            return INVALID_DATE
+        }
+
+        return epochDay(digits(value, secondSlash + 1, end, 4), digits(value, firstSlash + 1, secondSlash, 2), digits(value, start, firstSlash, 2))
+    }
+
+    /**
+     * Decodes a yyyy-MM-dd date, as used by the supplementary data file.
+     *
+     * @return the epoch day, MISSING_DATE for a blank cell or INVALID_DATE if the cell is not such a date
+     */
+    fun decodeIsoDate(value: CharSequence?): Long {
+        if (value == null) {
+            return MISSING_DATE
+        }
+        val start = firstNonSpace(value)
+        val end = lastNonSpace(value) + 1
+        if (start >= end) {
+            return MISSING_DATE
+        }
+        if (end - start != 10 || value[start + 4] != '-' || value[start + 7] != '-') {
+            return INVALID_DATE
+        }
+
+        return epochDay(digits(value, start, start + 4, 4), digits(value, start + 5, start + 7, 2), digits(value, start + 8, end, 2))
+    }
+
+    /**
+     * Decodes a currency amount such as "£1,234.56" or "-12.5". The result packs the unscaled value and the
+     * number of decimal places into a long, see toBigDecimal.
+     *
+     * @return the packed amount, MISSING_AMOUNT for a blank cell or INVALID_AMOUNT if the cell is not an amount
+     */
+    fun decodeAmount(value: CharSequence?): Long {
+        if (value == null) {
+            return MISSING_AMOUNT
+        }
+        var start = firstNonSpace(value)
+        val end = lastNonSpace(value) + 1
+        if (start < end && value[start] == '£') {
+            start++
+        }
+        if (start >= end) {
+            return MISSING_AMOUNT
+        }
+
+        val negative = value[start] == '-'
+        if (negative || value[start] == '+') {
+            start++
+        }
+
+        var unscaled = 0L
+        var scale = -1
+        var digitCount = 0
+        for (i in start until end) {
+            val c = value[i]
+            when {
+                c in '0'..'9' -> {
+                    if (unscaled > AMOUNT_MAX_UNSCALED / 10) {
+                        return INVALID_AMOUNT
+                    }
+                    unscaled = unscaled * 10 + (c - '0')
+                    digitCount++
+                    if (scale >= 0) {
+                        scale++
+                    }
+                }
+                c == '.' && scale < 0 -> scale = 0
+                c == ',' && scale < 0 -> {}
+                else -> return INVALID_AMOUNT
+            }
+        }
+        if (digitCount == 0 || scale > AMOUNT_MAX_SCALE) {
+            return INVALID_AMOUNT
+        }
+
+        if (negative) {
+            unscaled = -unscaled
+        }
+        return (unscaled shl AMOUNT_SCALE_BITS) or maxOf(scale, 0).toLong()
+    }
+
+    /**
+     * @return the BigDecimal for an amount returned by decodeAmount
+     */
+    fun toBigDecimal(amount: Long): BigDecimal {
+        return BigDecimal.valueOf(unscaledValue(amount), scale(amount))
+    }
+
+    /**
+     * @return the digits of an amount returned by decodeAmount, without the decimal point
+     */
+    fun unscaledValue(amount: Long): Long {
+        return amount shr AMOUNT_SCALE_BITS
+    }
+
+    /**
+     * @return the number of decimal places of an amount returned by decodeAmount
+     */
+    fun scale(amount: Long): Int {
+        return (amount and AMOUNT_MAX_SCALE.toLong()).toInt()
+    }
+
+    private fun epochDay(year: Int, month: Int, day: Int): Long {
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID_DATE
+        }
+
+        // days from civil, proleptic Gregorian calendar
+        val y = if (month <= 2) year - 1 else year
+        val era = y / 400
+        val yearOfEra = y - era * 400
+        val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+        val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+        return era * 146097L + dayOfEra - 719468
+    }
+
+    private fun daysInMonth(year: Int, month: Int): Int {
+        return when (month) {
+            2 -> if (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) 29 else 28
+            4, 6, 9, 11 -> 30
+            else -> 31
+        }
+    }
+
+    /**
+     * @return the number made of the digits between start and end, or -1 if there are none, too many or a
+     * non digit character
+     */
+    private fun digits(value: CharSequence, start: Int, end: Int, maxDigits: Int): Int {
+        if (start >= end || end - start > maxDigits) {
+            return -1
+        }
+        var result = 0
+        for (i in start until end) {
+            val digit = value[i] - '0'
+            if (digit < 0 || digit > 9) {
+                return -1
+            }
+            result = result * 10 + digit
+        }
+        return result
+    }
+
+    private fun indexOf(value: CharSequence, c: Char, start: Int, end: Int): Int {
+        for (i in start until end) {
+            if (value[i] == c) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun firstNonSpace(value: CharSequence): Int {
+        var i = 0
+        while (i < value.length && value[i] == ' ') {
+            i++
+        }
+        return i
+    }
+
+    private fun lastNonSpace(value: CharSequence): Int {
+        var i = value.length - 1
+        while (i >= 0 && value[i] == ' ') {
+            i--
+        }
+        return i
+    }
+
+}
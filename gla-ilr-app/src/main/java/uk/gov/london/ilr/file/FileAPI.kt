@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.springframework.security.access.prepost.PreAuthorize
+import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RequestParam
+import org.springframework.web.bind.annotation.RestController
+
+@RestController
+@RequestMapping("/api/v1")
+class FileAPI(private val fileService: FileService) {
+
+    /**
+     * Moves the content of up to batchSize files still held in the database into the file content store.
+     *
+     * @return the number of files moved, call again until it is 0
+     */
+    @PreAuthorize("hasAnyRole('OPS_ADMIN')")
+    @PostMapping("/files/migrateContent")
+    fun migrateFileContent(@RequestParam(defaultValue = "100") batchSize: Int): Int {
+        return fileService.migrateContentToStore(batchSize)
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+import java.time.Instant
+import java.util.stream.Collectors
+
+private val KEY_PATTERN = Regex("[0-9a-f]{64}")
+
+/**
+ * Where the content of stored files is kept, so that the file table only holds their metadata and a key.
+ */
+interface FileContentStore {
+
+    /**
+     * Stores a copy of the bytes in the file at path, which is left in place. Storing content which is already
+     * stored counts as storing it again, see keysStoredBefore.
+     *
+     * @return the key to read the content back with
+     */
+    fun put(path: Path): String
+
+    fun open(key: String): InputStream
+
+    /**
+     * @return the number of bytes stored under the key
+     */
+    fun size(key: String): Long
+
+    /**
+     * Deletes the content unless it has been stored again since the given time, checking and deleting atomically
+     * with respect to put.
+     *
+     * @return true if the content was deleted
+     */
+    fun deleteIfStoredBefore(key: String, time: Instant): Boolean
+
+    /**
+     * @return the keys of the content last stored before the given time
+     */
+    fun keysStoredBefore(time: Instant): List<String>
+
+}
+
+/**
+ * Keeps content in a local directory, addressed by the SHA-256 of its bytes so that the same content is only
+ * kept once. Content is spread over subdirectories named after the first two characters of its key.
+ */
+@Component
+class LocalFileContentStore : FileContentStore {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    @Value("\${ilr.file-store.dir}")
+    var storeDir: String = System.getProperty("user.home") + "/ilr-files"
+
+    override fun put(path: Path): String {
+        val root = root()
+        val digest = MessageDigest.getInstance("SHA-256")
+        val copy = Files.createTempFile(root, "put-", ".tmp")
+        try {
+            DigestOutputStream(Files.newOutputStream(copy), digest).use { Files.copy(path, it) }
+            val key = digest.digest().joinToString("") { "%02x".format(it) }
+            val target = pathFor(key)
+            synchronized(this) {
+                if (Files.exists(target)) {
+                    log.debug("Content $key is already stored")
+                    Files.setLastModifiedTime(target, FileTime.from(Instant.now()))
+                }
+                else {
+                    Files.createDirectories(target.parent)
+                    Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+                }
+            }
+            return key
+        }
+        finally {
+            Files.deleteIfExists(copy)
+        }
+    }
+
+    override fun open(key: String): InputStream {
+        return Files.newInputStream(pathFor(key))
+    }
+
+    override fun size(key: String): Long {
+        return Files.size(pathFor(key))
+    }
+
+    @Synchronized
+    override fun deleteIfStoredBefore(key: String, time: Instant): Boolean {
+        val path = pathFor(key)
+        if (!Files.exists(path) || !Files.getLastModifiedTime(path).toInstant().isBefore(time)) {
+            return false
+        }
+        Files.delete(path)
+        return true
+    }
+
+    override fun keysStoredBefore(time: Instant): List<String> {
+        return Files.walk(root(), 2).use { paths ->
+            paths.filter { Files.isRegularFile(it) && it.fileName.toString().matches(KEY_PATTERN) }
+                    .filter { Files.getLastModifiedTime(it).toInstant().isBefore(time) }
+                    .map { it.fileName.toString() }
+                    .collect(Collectors.toList())
+        }
+    }
+
+    private fun root(): Path {
+        val root = Paths.get(storeDir)
+        Files.createDirectories(root)
+        return root
+    }
+
+    private fun pathFor(key: String): Path {
+        if (!key.matches(KEY_PATTERN)) {
+            throw RuntimeException("Invalid file content key $key")
+        }
+        return Paths.get(storeDir, key.substring(0, 2), key)
+    }
+
+}
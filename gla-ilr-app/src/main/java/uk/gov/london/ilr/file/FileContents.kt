@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.springframework.core.io.AbstractResource
+import org.springframework.core.io.ByteArrayResource
+import org.springframework.core.io.InputStreamResource
+import org.springframework.core.io.Resource
+import org.springframework.http.HttpHeaders
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import java.io.InputStream
+import java.util.zip.GZIPInputStream
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * How the content of a stored file is encoded.
+ */
+enum class FileContentCodec {
+
+    /**
+     * Files stored before content was compressed, whose text is in the file_content column.
+     */
+    NONE,
+
+    /**
+     * UTF-8 text compressed with gzip, in the FileContentStore or, for files stored before it was used, in the
+     * compressed_content column.
+     */
+    GZIP
+
+}
+
+/**
+ * The content of a stored file, wherever it is kept.
+ *
+ * @param contentLength the number of bytes of UTF-8 text, if known
+ * @param storedLength the number of bytes as stored
+ * @param tag identifies the stored bytes, such as the key of content-addressed content, if anything does
+ */
+class StoredContent(val codec: FileContentCodec,
+                    val contentLength: Long?,
+                    val storedLength: Long,
+                    val tag: String?,
+                    private val opener: () -> InputStream) {
+
+    /**
+     * @return the bytes as stored, gzip compressed for GZIP and UTF-8 text for NONE
+     */
+    fun openStream(): InputStream {
+        return opener()
+    }
+
+    /**
+     * @return the UTF-8 text, decompressed as it is read if need be
+     */
+    fun openText(): InputStream {
+        return if (codec == FileContentCodec.GZIP) GZIPInputStream(openStream()) else openStream()
+    }
+
+}
+
+object FileContents {
+
+    /**
+     * @return true unless the Accept-Encoding header leaves out gzip or gives it a quality of 0
+     */
+    @JvmStatic
+    fun acceptsGzip(acceptEncoding: String?): Boolean {
+        if (acceptEncoding == null) {
+            return false
+        }
+        for (coding in acceptEncoding.split(',')) {
+            val parts = coding.split(';').map { it.trim() }
+            if (parts[0].equals("gzip", true) || parts[0] == "*") {
+                val quality = parts.drop(1).firstOrNull { it.startsWith("q=") }?.substring(2)?.toDoubleOrNull()
+                return quality == null || quality > 0
+            }
+        }
+        return false
+    }
+
+    /**
+     * Builds the response for downloading a stored file, streamed from wherever it is kept. Compressed content is
+     * sent as stored, with a gzip Content-Encoding, to clients which accept it, and decompressed for the rest.
+     *
+     * The body is a Resource of known length, so Spring answers Range requests with just the bytes asked for,
+     * and an If-None-Match matching the ETag with 304 Not Modified. A Range whose If-Range does not match the
+     * ETag gets the whole file, as the client's partial copy is of something else.
+     */
+    @JvmStatic
+    fun download(fileName: String, contentType: String, content: StoredContent, requestHeaders: HttpHeaders): ResponseEntity<Resource> {
+        val gzip = content.codec == FileContentCodec.GZIP && acceptsGzip(requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING))
+        val length = if (gzip) content.storedLength else content.contentLength
+        val eTag = content.tag?.let { if (gzip) "\"$it\"" else "\"$it-text\"" }
+        val opener = if (gzip) content::openStream else content::openText
+
+        val response = ResponseEntity.ok()
+                .header("Content-disposition", "attachment;filename=$fileName")
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .contentType(MediaType.parseMediaType(contentType))
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+        }
+        if (eTag != null) {
+            response.eTag(eTag)
+        }
+
+        return when {
+            length == null -> response.body(InputStreamResource(opener()))
+            isStaleRange(requestHeaders, eTag) -> response.contentLength(length).body(InputStreamResource(opener()))
+            else -> response.body(StoredContentResource(fileName, length, opener))
+        }
+    }
+
+    private fun isStaleRange(requestHeaders: HttpHeaders, eTag: String?): Boolean {
+        val ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE)
+        return requestHeaders.getFirst(HttpHeaders.RANGE) != null && ifRange != null && ifRange != eTag
+    }
+
+    @JvmStatic
+    fun download(fileName: String, contentType: String, text: String): ResponseEntity<Resource> {
+        return ResponseEntity.ok()
+                .header("Content-disposition", "attachment;filename=$fileName")
+                .contentType(MediaType.parseMediaType(contentType))
+                .body(ByteArrayResource(text.toByteArray(UTF_8)))
+    }
+
+}
+
+/**
+ * One representation of stored content, opened afresh for each read so that nothing is read until the response
+ * is written, and each byte range is read from the start of the stream.
+ */
+private class StoredContentResource(private val fileName: String,
+                                    private val length: Long,
+                                    private val opener: () -> InputStream) : AbstractResource() {
+
+    override fun getInputStream(): InputStream {
+        return opener()
+    }
+
+    override fun contentLength(): Long {
+        return length
+    }
+
+    override fun exists(): Boolean {
+        return true
+    }
+
+    override fun getFilename(): String {
+        return fileName
+    }
+
+    override fun getDescription(): String {
+        return "stored file $fileName"
+    }
+
+}
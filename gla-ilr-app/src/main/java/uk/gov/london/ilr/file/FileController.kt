@@ -7,21 +7,29 @@
  */
 package uk.gov.london.ilr.file
 
+import org.springframework.http.MediaType
 import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.stereotype.Controller
 import org.springframework.ui.Model
 import org.springframework.ui.set
 import org.springframework.web.bind.annotation.GetMapping
+import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.PostMapping
 import org.springframework.web.bind.annotation.RequestParam
+import org.springframework.web.bind.annotation.ResponseBody
 import org.springframework.web.multipart.MultipartFile
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter
 import org.springframework.web.servlet.mvc.support.RedirectAttributes
 import uk.gov.london.ilr.file.ESFMonthlyRecordFile.validateESFMonthlyRecordFile
 import uk.gov.london.ilr.security.UserService
+import java.io.InputStream
+import javax.servlet.http.HttpServletRequest
 
 @Controller
 class FileController(private val fileUploadHandler: FileUploadHandler,
                      private val dataImportService: DataImportService,
+                     private val importProgressTracker: ImportProgressTracker,
+                     private val importJobService: ImportJobService,
                      private val userService: UserService) {
 
     @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
@@ -29,20 +37,62 @@ class FileController(private val fileUploadHandler: FileUploadHandler,
     fun handleFileUpload(@RequestParam("file") file: MultipartFile, redirectAttributes: RedirectAttributes): String {
         try {
             val fileName = file.originalFilename
+            if (CompressedUploads.isZip(fileName)) {
+                queueZipEntries(fileName!!, file.inputStream, redirectAttributes)
+                return "redirect:/files"
+            }
+
             val importType = getDataImportTypeFromFileName(fileName)
             if (importType.isMonthlyFile) {
                 validateESFMonthlyRecordFile(fileName, importType)
             }
 
-            val result: UploadResult
             if (file.size > 1000000) {
-                result = fileUploadHandler.uploadAsync(fileName, file.inputStream, importType, userService.currentUserName())
+                importJobService.submit(fileName, file.inputStream, importType, userService.currentUserName())
+                redirectAttributes.addFlashAttribute("infoMessage", "$fileName has been queued for import")
             }
             else {
-                result = fileUploadHandler.upload(fileName, file.inputStream, importType, userService.currentUserName())
+                val result = fileUploadHandler.upload(fileName, file.inputStream, importType, userService.currentUserName())
+                if (result.errorMessages.isNotEmpty()) {
+                    redirectAttributes.addFlashAttribute("errorMessageList", result.errorMessages)
+                }
+            }
+        }
+        catch (e: Exception) {
+            redirectAttributes.addFlashAttribute("errorMessage", "Failed to upload due to: ${e.message}")
+        }
+
+        return "redirect:/files"
+    }
+
+    /**
+     * Takes the file as the raw request body and imports it as it arrives, rather than waiting for a multipart
+     * upload to be saved to disk first. The import runs on the request thread as it reads the request, unless it
+     * would clash with a running import, in which case the file is queued instead, see ImportJobService.runStreamed.
+     */
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
+    @PostMapping("/upload/stream")
+    fun handleStreamingFileUpload(@RequestParam("fileName") fileName: String, request: HttpServletRequest, redirectAttributes: RedirectAttributes): String {
+        try {
+            if (CompressedUploads.isZip(fileName)) {
+                queueZipEntries(fileName, request.inputStream, redirectAttributes)
+                return "redirect:/files"
             }
 
-            if (result.errorMessages.isNotEmpty()) {
+            val importType = getDataImportTypeFromFileName(fileName)
+            if (importType.isMonthlyFile) {
+                validateESFMonthlyRecordFile(fileName, importType)
+            }
+
+            val result = importJobService.runStreamed(fileName, importType) {
+                fileUploadHandler.upload(fileName, request.inputStream, importType, userService.currentUserName(), request.contentLengthLong)
+            }
+
+            if (result == null) {
+                importJobService.submit(fileName, request.inputStream, importType, userService.currentUserName())
+                redirectAttributes.addFlashAttribute("infoMessage", "$fileName has been queued for import, as another import of the same data is running")
+            }
+            else if (result.errorMessages.isNotEmpty()) {
                 redirectAttributes.addFlashAttribute("errorMessageList", result.errorMessages)
             }
         }
@@ -53,6 +103,38 @@ class FileController(private val fileUploadHandler: FileUploadHandler,
         return "redirect:/files"
     }
 
+    /**
+     * Queues each CSV file in a zip as an import of its own, with its type taken from its name in the zip. The
+     * files are inflated as they are read and kept compressed while they wait in the queue.
+     */
+    private fun queueZipEntries(zipFileName: String, inputStream: InputStream, redirectAttributes: RedirectAttributes) {
+        val queued = mutableListOf<String>()
+        val errors = mutableListOf<String>()
+        CompressedUploads.forEachCsvEntry(inputStream) { fileName, entry ->
+            try {
+                val importType = getDataImportTypeFromFileName(fileName)
+                if (importType.isMonthlyFile) {
+                    validateESFMonthlyRecordFile(fileName, importType)
+                }
+                importJobService.submit(fileName, entry, importType, userService.currentUserName(), compress = true)
+                queued.add(fileName)
+            }
+            catch (e: Exception) {
+                errors.add("Unable to import $fileName from $zipFileName due to: ${e.message}")
+            }
+        }
+
+        if (queued.isEmpty() && errors.isEmpty()) {
+            errors.add("No CSV files found in $zipFileName")
+        }
+        if (queued.isNotEmpty()) {
+            redirectAttributes.addFlashAttribute("infoMessage", "${queued.joinToString()} queued for import")
+        }
+        if (errors.isNotEmpty()) {
+            redirectAttributes.addFlashAttribute("errorMessageList", errors)
+        }
+    }
+
     fun getDataImportTypeFromFileName(fileName: String?) = (DataImportType.getTypeByFilename(fileName!!)
             ?: throw IllegalArgumentException("Unable to identify file type by filename: $fileName"))
 
@@ -63,12 +145,56 @@ class FileController(private val fileUploadHandler: FileUploadHandler,
         return "files"
     }
 
+    /**
+     * Streams the progress of a running import as server-sent events until it finishes.
+     */
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
+    @GetMapping("/files/{id}/progress", produces = [MediaType.TEXT_EVENT_STREAM_VALUE])
+    @ResponseBody
+    fun importProgress(@PathVariable("id") id: Int): SseEmitter {
+        return importProgressTracker.subscribe(id)
+    }
+
     @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE')")
     @PostMapping("/deleteFile")
     fun deleteFile(@RequestParam("id") id: Int, redirectAttributes: RedirectAttributes): String {
+        importJobService.cancel(id)
+        // a running import saves its row again when it stops, so it can only be deleted once it has
+        val dataImport = dataImportService.getDataImportRecord(id)
+        if (dataImport?.status == DataImportStatus.PROCESSING) {
+            redirectAttributes.addFlashAttribute("errorMessage", "${dataImport.fileName} is still being imported, it is being cancelled and can be deleted once it has stopped")
+            return "redirect:/files"
+        }
+
+        fileUploadHandler.discardResumableImport(id)
         dataImportService.delete(id)
         redirectAttributes.addFlashAttribute("infoMessage", "File successfully deleted")
         return "redirect:/files"
     }
 
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE')")
+    @PostMapping("/resumeImport")
+    fun resumeImport(@RequestParam("id") id: Int, redirectAttributes: RedirectAttributes): String {
+        try {
+            importJobService.resume(id)
+            redirectAttributes.addFlashAttribute("infoMessage", "Import queued to resume")
+        }
+        catch (e: Exception) {
+            redirectAttributes.addFlashAttribute("errorMessage", "Failed to resume import due to: ${e.message}")
+        }
+        return "redirect:/files"
+    }
+
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE')")
+    @PostMapping("/cancelImport")
+    fun cancelImport(@RequestParam("id") id: Int, redirectAttributes: RedirectAttributes): String {
+        if (importJobService.cancel(id)) {
+            redirectAttributes.addFlashAttribute("infoMessage", "Import cancelled")
+        }
+        else {
+            redirectAttributes.addFlashAttribute("errorMessage", "The import is no longer queued or running")
+        }
+        return "redirect:/files"
+    }
+
 }
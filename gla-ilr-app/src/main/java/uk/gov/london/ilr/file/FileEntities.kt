@@ -48,8 +48,33 @@ data class FileEntity(
         @Column(name = "ukprn")
         var ukprn: Int? = null,
 
+        /**
+         * The text of files stored before content was compressed, see codec.
+         */
         @Column(name = "file_content")
-        var content: String
+        var content: String? = null,
+
+        @Enumerated(EnumType.STRING)
+        @Column(name = "content_codec")
+        var codec: FileContentCodec = FileContentCodec.NONE,
+
+        /**
+         * Content compressed before the file content store was used, see contentKey.
+         */
+        @Column(name = "compressed_content")
+        var compressedContent: ByteArray? = null,
+
+        /**
+         * Key of the content in the FileContentStore, null for files still held in the database.
+         */
+        @Column(name = "content_key")
+        var contentKey: String? = null,
+
+        /**
+         * Number of bytes of UTF-8 text the content decompresses to.
+         */
+        @Column(name = "content_length")
+        var contentLength: Long? = null
 
 )
 
@@ -70,6 +95,9 @@ data class FileSummary(
         var fileSuffix: String? = null,
 
         @Column(name = "ukprn")
-        var ukprn: Int? = null
+        var ukprn: Int? = null,
+
+        @Column(name = "content_key")
+        var contentKey: String? = null
 
 )
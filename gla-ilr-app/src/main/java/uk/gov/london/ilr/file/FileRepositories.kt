@@ -7,6 +7,7 @@
  */
 package uk.gov.london.ilr.file
 
+import org.springframework.data.domain.Pageable
 import org.springframework.data.jpa.repository.JpaRepository
 
 interface FileEntityRepository : JpaRepository<FileEntity, Int> {
@@ -17,10 +18,18 @@ interface FileEntityRepository : JpaRepository<FileEntity, Int> {
 
     fun findByDataImportId(dataImportId: Int) : FileEntity?
 
+    fun countByContentKey(contentKey: String) : Long
+
+    fun findAllByContentKeyIsNull(pageable: Pageable) : List<FileEntity>
+
 }
 
 interface FileSummaryRepository : JpaRepository<FileSummary, Int> {
 
     fun findAllByUkprnIn(ukprns: Set<Int>) : List<FileSummary>
 
+    fun findAllByFileTypeAndFileSuffixOrderByUkprn(fileType: String, fileSuffix: String) : List<FileSummary>
+
+    fun findAllByFileTypeAndFileSuffixAndUkprnInOrderByUkprn(fileType: String, fileSuffix: String, ukprns: Set<Int>) : List<FileSummary>
+
 }
@@ -9,20 +9,49 @@ package uk.gov.london.ilr.file
 
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.PageRequest
 import org.springframework.stereotype.Service
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 import uk.gov.london.ilr.environment.Environment
 import uk.gov.london.ilr.security.UserService
+import java.io.FilterOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.io.Reader
+import java.io.StringReader
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.time.Duration
+import java.time.Instant
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 import javax.transaction.Transactional
+import kotlin.text.Charsets.UTF_8
 
 @Service
 @Transactional
 class FileService @Autowired constructor(val fileEntityRepository: FileEntityRepository,
                                          val fileSummaryRepository: FileSummaryRepository,
+                                         val fileContentStore: FileContentStore,
                                          val userService: UserService,
                                          val environment: Environment) {
 
     internal var log = LoggerFactory.getLogger(javaClass)
 
+    /**
+     * How long stored content is kept after it was last stored before it may be deleted as unreferenced.
+     */
+    @Value("\${ilr.file-store.orphan-grace-minutes}")
+    var orphanGraceMinutes: Long = 60
+
     fun getAllFileSummaries() : List<FileSummary> {
         val currentUser = userService.currentUser
         return if (currentUser.isGla) {
@@ -37,19 +66,156 @@ class FileService @Autowired constructor(val fileEntityRepository: FileEntityRep
         return fileEntityRepository.findFirstByFileTypeAndFileSuffixAndUkprn(fileType, fileSuffix, ukprn)
     }
 
+    /**
+     * @return the content of the file, read from the FileContentStore or, for files stored before it was used,
+     * from the database
+     */
+    fun contentOf(file: FileEntity) : StoredContent {
+        val contentKey = file.contentKey
+        val compressedContent = file.compressedContent
+        return when {
+            contentKey != null -> StoredContent(FileContentCodec.GZIP, file.contentLength, fileContentStore.size(contentKey), contentKey) {
+                fileContentStore.open(contentKey)
+            }
+            compressedContent != null -> StoredContent(FileContentCodec.GZIP, file.contentLength, compressedContent.size.toLong(), null) {
+                compressedContent.inputStream()
+            }
+            else -> {
+                val content = (file.content ?: "").toByteArray(UTF_8)
+                StoredContent(FileContentCodec.NONE, content.size.toLong(), content.size.toLong(), null) { content.inputStream() }
+            }
+        }
+    }
+
     fun saveFile(dataImportId: Int?, fileType: String, fileSuffix: String, ukprn: Int, content: String) {
-        fileEntityRepository.save(FileEntity(
-                dataImportId = dataImportId,
-                fileType = fileType,
-                fileSuffix = fileSuffix,
-                ukprn = ukprn,
-                content = content
-        ))
+        saveFile(dataImportId, fileType, fileSuffix, ukprn, StringReader(content))
+    }
+
+    /**
+     * Saves text spooled to disk, streaming it into the file content store rather than reading it into memory first.
+     */
+    fun saveFile(dataImportId: Int?, fileType: String, fileSuffix: String, ukprn: Int, content: SpooledText) {
+        content.reader().use { reader -> saveFile(dataImportId, fileType, fileSuffix, ukprn, reader) }
+    }
+
+    /**
+     * Saves text read from a stream. The text is compressed to a temporary file and put in the file content store
+     * from there, the database only records where it is.
+     */
+    fun saveFile(dataImportId: Int?, fileType: String, fileSuffix: String, ukprn: Int, content: Reader) {
+        val compressed = Files.createTempFile("ilr-", ".csv.gz")
+        try {
+            val contentLength = gzipTo(compressed, content)
+            fileEntityRepository.save(FileEntity(
+                    dataImportId = dataImportId,
+                    fileType = fileType,
+                    fileSuffix = fileSuffix,
+                    ukprn = ukprn,
+                    codec = FileContentCodec.GZIP,
+                    contentKey = fileContentStore.put(compressed),
+                    contentLength = contentLength
+            ))
+        }
+        finally {
+            Files.deleteIfExists(compressed)
+        }
+    }
+
+    /**
+     * @return the number of bytes of UTF-8 text written before compression
+     */
+    private fun gzipTo(path: Path, content: Reader): Long {
+        var contentLength = 0L
+        val counting = object : FilterOutputStream(GZIPOutputStream(Files.newOutputStream(path))) {
+            override fun write(b: Int) {
+                out.write(b)
+                contentLength++
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                out.write(b, off, len)
+                contentLength += len
+            }
+        }
+        OutputStreamWriter(counting, UTF_8).use { content.copyTo(it) }
+        return contentLength
+    }
+
+    /**
+     * Moves the content of up to batchSize files still held in the database into the file content store,
+     * compressing it on the way if need be. Called repeatedly until it returns 0 to move all of them.
+     *
+     * @return the number of files moved
+     */
+    fun migrateContentToStore(batchSize: Int) : Int {
+        val files = fileEntityRepository.findAllByContentKeyIsNull(PageRequest.of(0, batchSize))
+        for (file in files) {
+            val compressed = Files.createTempFile("ilr-", ".csv.gz")
+            try {
+                val content = contentOf(file)
+                if (content.codec == FileContentCodec.GZIP) {
+                    content.openStream().use { Files.copy(it, compressed, StandardCopyOption.REPLACE_EXISTING) }
+                }
+                else {
+                    file.contentLength = gzipTo(compressed, StringReader(file.content ?: ""))
+                }
+                file.contentKey = fileContentStore.put(compressed)
+                file.codec = FileContentCodec.GZIP
+                file.content = null
+                file.compressedContent = null
+                fileEntityRepository.save(file)
+            }
+            finally {
+                Files.deleteIfExists(compressed)
+            }
+        }
+        log.info("Moved the content of ${files.size} files to the file content store")
+        return files.size
+    }
+
+    /**
+     * Writes a zip of the files of a type for a return period, one entry per UKPRN, reading each file's content
+     * as it is added so that neither the files nor the zip are held in memory. Runs outside a transaction, so that
+     * no database connection is held while the zip is written to a slow client: the files are listed, and any
+     * still held in the database loaded, by repository calls of their own.
+     *
+     * @param ukprns the UKPRNs to include, or null for all of them
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    fun exportZip(fileType: String, fileSuffix: String, ukprns: Set<Int>?, out: OutputStream) {
+        val files = if (ukprns == null) {
+            fileSummaryRepository.findAllByFileTypeAndFileSuffixOrderByUkprn(fileType, fileSuffix)
+        }
+        else {
+            fileSummaryRepository.findAllByFileTypeAndFileSuffixAndUkprnInOrderByUkprn(fileType, fileSuffix, ukprns)
+        }
+
+        val zip = ZipOutputStream(out)
+        for (file in files.distinctBy { it.ukprn }) {
+            zip.putNextEntry(ZipEntry("$fileType ${file.ukprn} $fileSuffix.csv"))
+            openText(file).use { it.copyTo(zip) }
+            zip.closeEntry()
+        }
+        zip.finish()
+    }
+
+    /**
+     * @return the file's text, only loading the whole file entity for files still held in the database
+     */
+    private fun openText(file: FileSummary) : InputStream {
+        val contentKey = file.contentKey
+        return if (contentKey != null) {
+            GZIPInputStream(fileContentStore.open(contentKey))
+        }
+        else {
+            contentOf(fileEntityRepository.findById(file.id!!).get()).openText()
+        }
     }
 
     fun deleteTestData() {
         if (environment.isTestEnvironment) {
             fileEntityRepository.deleteAll()
+            sweepUnreferencedContentAfterCommit()
         }
         else {
             log.warn("attempt to delete data in a non-test environment!")
@@ -58,6 +224,42 @@ class FileService @Autowired constructor(val fileEntityRepository: FileEntityRep
 
     fun deleteByDataImportId(dataImportId: Int) {
         fileEntityRepository.deleteByDataImportId(dataImportId)
+        sweepUnreferencedContentAfterCommit()
+    }
+
+    /**
+     * Waits for the transaction deleting files to commit, so that their content is kept if it rolls back.
+     */
+    private fun sweepUnreferencedContentAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(object : TransactionSynchronizationAdapter() {
+                override fun afterCommit() {
+                    sweepUnreferencedContent()
+                }
+            })
+        }
+        else {
+            sweepUnreferencedContent()
+        }
+    }
+
+    /**
+     * Deletes stored content no file refers to, as the same content is only stored once and may be shared.
+     * Content stored, or stored again, within the last orphanGraceMinutes is kept whether or not anything refers
+     * to it, as the file saved with it may not have been committed yet; it is swept up by a later run.
+     */
+    @EventListener(ApplicationReadyEvent::class)
+    fun sweepUnreferencedContent() {
+        val storedBefore = Instant.now().minus(Duration.ofMinutes(orphanGraceMinutes))
+        var deleted = 0
+        for (contentKey in fileContentStore.keysStoredBefore(storedBefore)) {
+            if (fileEntityRepository.countByContentKey(contentKey) == 0L && fileContentStore.deleteIfStoredBefore(contentKey, storedBefore)) {
+                deleted++
+            }
+        }
+        if (deleted > 0) {
+            log.info("Deleted $deleted unreferenced stored files")
+        }
     }
 
     fun findByDataImportId(dataImportId: Int) : FileEntity? {
@@ -9,7 +9,6 @@ package uk.gov.london.ilr.file
 
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Autowired
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
 import org.springframework.transaction.interceptor.TransactionInterceptor
 import uk.gov.london.common.CSVFile
@@ -35,54 +34,174 @@ class FileUploadHandler @Autowired constructor(
         val occupancyReportService: OccupancyReportService,
         val supplementaryDataService: SupplementaryDataService,
         val splitByUkprnCsvImporter: SplitByUkprnCsvImporter,
+        val importSpool: ImportSpool,
+        val importProgressTracker: ImportProgressTracker,
         val refDataMappingRepository: RefDataMappingRepository,
         var userService: UserService,
         val environment: Environment) {
 
     internal var log = LoggerFactory.getLogger(javaClass)
 
-    @Async
-    fun uploadAsync(fileName: String?, inputStream: InputStream, importType: DataImportType, userName: String): UploadResult {
-        return upload(fileName, inputStream, importType, userName)
+    /**
+     * @param contentLength size of the upload if known, used to estimate the time the import will take
+     */
+    fun upload(fileName: String?, inputStream: InputStream, importType: DataImportType, userName: String? = SYSTEM_USER, contentLength: Long = -1): UploadResult {
+        val dataImport = DataImport(fileName = fileName)
+        dataImport.status = DataImportStatus.PROCESSING
+        dataImport.processingNode = environment.hostName()
+        dataImport.createdOn = environment.now()
+        dataImport.importType = importType
+        dataImport.createdBy = userName
+        dataImportService.saveWithNewTransaction(dataImport)
+
+        return upload(dataImport, inputStream, contentLength)
+    }
+
+    fun upload(dataImport: DataImport, inputStream: InputStream, contentLength: Long = -1): UploadResult {
+        return process(dataImport, inputStream, false, false, contentLength)
     }
 
-    fun upload(fileName: String?, inputStream: InputStream, importType: DataImportType, userName: String? = SYSTEM_USER): UploadResult {
+    /**
+     * Saves a copy of the upload and records it as a queued import, to be run later by runQueued. The file name
+     * is checked straight away, so that a badly named file is refused before it is queued.
+     */
+    fun queue(fileName: String?, inputStream: InputStream, importType: DataImportType, userName: String?, priority: Int, compress: Boolean = false): DataImport {
         val dataImport = DataImport(fileName = fileName)
-        dataImport.status = DataImportStatus.PROCESSING
+        dataImport.status = DataImportStatus.QUEUED
         dataImport.createdOn = environment.now()
         dataImport.importType = importType
         dataImport.createdBy = userName
+        dataImport.priority = priority
+        validateFileName(dataImport)
+        extractYearAndPeriodIfAvailable(dataImport)
         dataImportService.saveWithNewTransaction(dataImport)
 
-        return upload(dataImport, inputStream)
+        try {
+            importSpool.save(dataImport, inputStream, compress)
+        }
+        catch (e: Exception) {
+            importSpool.delete(dataImport)
+            dataImport.status = DataImportStatus.FAILED
+            dataImportService.saveWithNewTransaction(dataImport)
+            throw e
+        }
+        return dataImportService.saveWithNewTransaction(dataImport)
+    }
+
+    /**
+     * Runs an import taken off the queue, reading the copy of the upload saved when it was queued. An occupancy
+     * report import which has already committed rows, see prepareResume, carries on after them.
+     */
+    fun runQueued(dataImport: DataImport): UploadResult {
+        val spooledFile = importSpool.spooledFile(dataImport)
+        if (spooledFile == null) {
+            dataImport.status = DataImportStatus.FAILED
+            dataImportService.saveWithNewTransaction(dataImport)
+            return UploadResult(errorMessages = mutableListOf("The uploaded copy of ${dataImport.fileName} is no longer available"))
+        }
+
+        val resuming = dataImport.importType == DataImportType.OCCUPANCY_REPORT && (dataImport.rowsProcessed ?: 0) > 0
+        if (resuming) {
+            log.info("Resuming import of ${dataImport.fileName} after row ${dataImport.rowsProcessed}")
+        }
+        return spooledFile.inputStream().use { process(dataImport, it, resuming, true) }
+    }
+
+    /**
+     * Checks that a failed occupancy report import can be carried on from the last batch it committed and
+     * queues it again, see runQueued.
+     */
+    fun prepareResume(dataImportId: Int): DataImport {
+        val dataImport = dataImportService.getDataImportRecord(dataImportId)
+                ?: throw RuntimeException("Unable to find import $dataImportId")
+        if (dataImport.status != DataImportStatus.FAILED || importSpool.spooledFile(dataImport) == null) {
+            throw RuntimeException("Import of ${dataImport.fileName} cannot be resumed")
+        }
+        if (dataImportService.hasNewerImport(dataImport)) {
+            throw RuntimeException("Import of ${dataImport.fileName} cannot be resumed as a newer file has been uploaded for the year")
+        }
+
+        dataImport.status = DataImportStatus.QUEUED
+        return dataImportService.saveWithNewTransaction(dataImport)
     }
 
-    fun upload(dataImport: DataImport, inputStream: InputStream): UploadResult {
+    /**
+     * Drops the spooled upload and staging data kept for resuming a failed or queued import.
+     */
+    fun discardResumableImport(dataImportId: Int) {
+        val dataImport = dataImportService.getDataImportRecord(dataImportId) ?: return
+        if (dataImport.spoolFile != null) {
+            discardSpooledData(dataImport)
+            dataImportService.saveWithNewTransaction(dataImport)
+        }
+    }
+
+    private fun discardSpooledData(dataImport: DataImport) {
+        if (dataImport.importType == DataImportType.OCCUPANCY_REPORT) {
+            occupancyReportService.discardResumableImport(dataImport)
+        }
+        importSpool.delete(dataImport)
+    }
+
+    /**
+     * @param inputStream the upload as it was received, which is inflated here if it is gzip compressed
+     * @param spooled true if the input stream is the copy of the upload kept by importSpool
+     */
+    private fun process(dataImport: DataImport, inputStream: InputStream, resuming: Boolean, spooled: Boolean, contentLength: Long = -1): UploadResult {
         validateFileName(dataImport)
         extractYearAndPeriodIfAvailable(dataImport)
 
         val uploadResult = UploadResult()
+        dataImport.status = DataImportStatus.PROCESSING
+        val progress = importProgressTracker.start(dataImport)
+        // progress is measured on the compressed bytes, as that is what the content length counts
+        val gzipped = if (spooled) importSpool.isCompressed(dataImport) else CompressedUploads.isGzip(dataImport.fileName)
+        val csv = { upload: InputStream -> CompressedUploads.decompress(progress.track(upload, contentLength), gzipped) }
         try {
             when (dataImport.importType) {
                 DataImportType.FUNDING_SUMMARY -> {
-                    fundingSummaryService.createSummaryRecords(dataImport, inputStream)
+                    fundingSummaryService.createSummaryRecords(dataImport, csv(inputStream))
                 }
 
                 DataImportType.OCCUPANCY_REPORT -> {
-                    occupancyReportService.createNewOccupancyRecords(dataImport, inputStream)
+                    if (resuming) {
+                        occupancyReportService.resumeOccupancyRecords(dataImport, csv(inputStream))
+                    }
+                    else if (spooled) {
+                        occupancyReportService.createNewOccupancyRecords(dataImport, csv(inputStream))
+                    }
+                    else {
+                        val tee = importSpool.tee(dataImport, inputStream)
+                        dataImportService.saveWithNewTransaction(dataImport)
+                        tee.use {
+                            try {
+                                occupancyReportService.createNewOccupancyRecords(dataImport, csv(it))
+                            }
+                            catch (e: Exception) {
+                                importSpool.drain(dataImport, it)
+                                throw e
+                            }
+                        }
+                    }
                 }
 
                 DataImportType.DATA_VALIDATION_ISSUES -> {
-                    splitByUkprnCsvImporter.createDataValidationIssueRecords(dataImport, inputStream)
+                    splitByUkprnCsvImporter.createDataValidationIssueRecords(dataImport, csv(inputStream))
                 }
 
                 DataImportType.SUPPLEMENTARY_DATA -> {
-                    supplementaryDataService.createSupplementaryDataRecords(dataImport, inputStream, uploadResult)
+                    supplementaryDataService.createSupplementaryDataRecords(dataImport, csv(inputStream), uploadResult)
                 }
             }
 
             dataImport.status = DataImportStatus.COMPLETE
         }
+        catch (e: ImportCancelledException) {
+            log.info("Import of ${dataImport.fileName} was cancelled")
+            dataImport.status = DataImportStatus.CANCELLED
+            uploadResult.errorMessages.add("Import of ${dataImport.fileName} was cancelled")
+            TransactionInterceptor.currentTransactionStatus().setRollbackOnly()
+        }
         catch (e: Exception) {
             log.error("failed to create records from ${dataImport.fileName} due to", e.message)
             dataImport.status = DataImportStatus.FAILED
@@ -92,14 +211,23 @@ class FileUploadHandler @Autowired constructor(
             TransactionInterceptor.currentTransactionStatus().setRollbackOnly();
         }
         finally {
+            // only a failed occupancy report import can be resumed from its spooled copy
+            if (dataImport.spoolFile != null && (dataImport.status != DataImportStatus.FAILED || dataImport.importType != DataImportType.OCCUPANCY_REPORT)) {
+                discardSpooledData(dataImport)
+            }
             dataImportService.saveWithNewTransaction(dataImport)
+            importProgressTracker.finish(dataImport, when (dataImport.status) {
+                DataImportStatus.COMPLETE -> ImportPhase.COMPLETE
+                DataImportStatus.CANCELLED -> ImportPhase.CANCELLED
+                else -> ImportPhase.FAILED
+            })
         }
 
         return uploadResult
     }
 
     private fun validateFileName(dataImport: DataImport) {
-        if (!dataImport.fileName!!.toUpperCase().endsWith(".CSV")) {
+        if (!CompressedUploads.csvName(dataImport.fileName!!).toUpperCase().endsWith(".CSV")) {
             throw RuntimeException("Upload failed: File must be in CSV format, to do this save an excel file as a .CSV")
         }
 
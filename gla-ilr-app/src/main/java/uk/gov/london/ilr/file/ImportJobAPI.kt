@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.springframework.http.ResponseEntity
+import org.springframework.security.access.prepost.PreAuthorize
+import org.springframework.web.bind.annotation.DeleteMapping
+import org.springframework.web.bind.annotation.GetMapping
+import org.springframework.web.bind.annotation.PathVariable
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RestController
+
+@RestController
+@RequestMapping("/api/v1")
+class ImportJobAPI(private val importJobService: ImportJobService) {
+
+    /**
+     * @return the running imports followed by the queued ones in the order they will be started
+     */
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
+    @GetMapping("/importJobs")
+    fun getImportJobs(): List<ImportJobStatus> {
+        return importJobService.jobs()
+    }
+
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
+    @GetMapping("/importJobs/{id}")
+    fun getImportJob(@PathVariable id: Int): ResponseEntity<ImportJobStatus> {
+        val job = importJobService.job(id) ?: return ResponseEntity.notFound().build()
+        return ResponseEntity.ok(job)
+    }
+
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE')")
+    @DeleteMapping("/importJobs/{id}")
+    fun cancelImportJob(@PathVariable id: Int): ResponseEntity<Void> {
+        return if (importJobService.cancel(id)) ResponseEntity.noContent().build() else ResponseEntity.notFound().build()
+    }
+
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Service
+import uk.gov.london.ilr.environment.Environment
+import java.io.InputStream
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+
+/**
+ * Status of a queued or running import, as returned by the import jobs API.
+ */
+class ImportJobStatus(val id: Int?,
+                      val fileName: String?,
+                      val importType: DataImportType?,
+                      val academicYear: Int?,
+                      val status: DataImportStatus?,
+                      val priority: Int,
+                      val queuePosition: Int?,
+                      val progress: ImportProgressSnapshot?)
+
+/**
+ * Runs uploaded files through a fixed pool of import workers. The queue is the data_import table itself: an
+ * upload is saved to the import spool and recorded as QUEUED, and a job is claimed by moving it to PROCESSING,
+ * so queued jobs survive a restart and are only ever started once.
+ *
+ * Jobs are started highest priority first, then oldest first. Imports which replace the same data, such as two
+ * occupancy reports for one academic year, never run at the same time, and at most maxOccupancyLoads occupancy
+ * reports run at once however many workers are free. Streamed uploads, which are imported on the request thread,
+ * count as running jobs for this, see runStreamed.
+ */
+@Service
+class ImportJobService(val fileUploadHandler: FileUploadHandler,
+                       val dataImportRepository: DataImportRepository,
+                       val importProgressTracker: ImportProgressTracker,
+                       val importSpool: ImportSpool,
+                       val environment: Environment) {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    @Value("\${ilr.import.jobs.workers}")
+    var workers: Int = 2
+
+    @Value("\${ilr.import.jobs.max-occupancy-loads}")
+    var maxOccupancyLoads: Int = 1
+
+    /**
+     * Most streamed uploads imported on request threads at once, on top of the workers.
+     */
+    @Value("\${ilr.import.jobs.max-streamed-uploads}")
+    var maxStreamedUploads: Int = 2
+
+    private lateinit var workerPool: ExecutorService
+
+    /**
+     * Concurrency keys of the jobs running on this node's workers, by data import id. Guarded by this.
+     */
+    private val running = HashMap<Int, String>()
+
+    /**
+     * Concurrency keys of the streamed uploads running on this node, by a number identifying the upload, as
+     * their data import is only created once they start. Guarded by this.
+     */
+    private val streaming = HashMap<Int, String>()
+
+    private val streamedUploadCount = AtomicInteger()
+
+    @PostConstruct
+    fun startWorkers() {
+        val count = AtomicInteger()
+        workerPool = Executors.newFixedThreadPool(workers) { runnable ->
+            val thread = Thread(runnable, "import-job-${count.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    @PreDestroy
+    fun stopWorkers() {
+        workerPool.shutdownNow()
+    }
+
+    /**
+     * Picks up the jobs queued, or running on this node, when the application was last stopped.
+     */
+    @EventListener(ApplicationReadyEvent::class)
+    fun startQueuedJobs() {
+        recoverInterruptedJobs()
+        dispatch()
+    }
+
+    /**
+     * Imports this node was running when it stopped are still PROCESSING. Occupancy reports are marked FAILED, so
+     * that they can be resumed from the rows they committed, other imports with a spooled copy of their upload
+     * are queued again, and the rest are marked FAILED.
+     */
+    private fun recoverInterruptedJobs() {
+        for (dataImport in dataImportRepository.findAllByStatusAndProcessingNode(DataImportStatus.PROCESSING, environment.hostName())) {
+            val status = if (dataImport.importType != DataImportType.OCCUPANCY_REPORT && importSpool.spooledFile(dataImport) != null) {
+                DataImportStatus.QUEUED
+            }
+            else {
+                DataImportStatus.FAILED
+            }
+            if (dataImportRepository.updateStatus(dataImport.id!!, DataImportStatus.PROCESSING, status) == 1) {
+                log.warn("Import ${dataImport.id} of ${dataImport.fileName} was interrupted by a restart, it is now $status")
+            }
+        }
+    }
+
+    /**
+     * Small files, and the ones a user is waiting on, are not held up behind a long occupancy report load.
+     */
+    fun defaultPriority(importType: DataImportType): Int {
+        return when (importType) {
+            DataImportType.OCCUPANCY_REPORT -> 0
+            DataImportType.FUNDING_SUMMARY -> 5
+            else -> 10
+        }
+    }
+
+    /**
+     * @param compress keep the queued copy gzip compressed, for an upload which has been inflated from a zip
+     */
+    fun submit(fileName: String?, inputStream: InputStream, importType: DataImportType, userName: String?,
+               priority: Int = defaultPriority(importType), compress: Boolean = false): DataImport {
+        val dataImport = fileUploadHandler.queue(fileName, inputStream, importType, userName, priority, compress)
+        dispatch()
+        return dataImport
+    }
+
+    /**
+     * Runs a streamed upload on the calling thread, as long as it would not clash with a running import of the
+     * same data, or take an occupancy report load beyond maxOccupancyLoads, and fewer than maxStreamedUploads are
+     * running. While it runs, queued jobs which would clash with it wait.
+     *
+     * @return the result of the upload, or null if it could not be started, for the caller to queue it instead
+     */
+    fun <T> runStreamed(fileName: String, importType: DataImportType, upload: () -> T): T? {
+        val streamedUpload = streamedUploadCount.incrementAndGet()
+        val key = if (importType.isMonthlyFile) {
+            val monthlyFile = ESFMonthlyRecordFile.parse(fileName)
+            concurrencyKey(importType, monthlyFile.year, monthlyFile.month, "streamed-$streamedUpload")
+        }
+        else {
+            concurrencyKey(importType, null, null, "streamed-$streamedUpload")
+        }
+
+        synchronized(this) {
+            if (streaming.size >= maxStreamedUploads || !canStart(importType, key)) {
+                log.info("Unable to import $fileName as it is uploaded, another import of the same data is running")
+                return null
+            }
+            streaming[streamedUpload] = key
+        }
+        try {
+            return upload()
+        }
+        finally {
+            synchronized(this) {
+                streaming.remove(streamedUpload)
+            }
+            dispatch()
+        }
+    }
+
+    /**
+     * Queues a failed occupancy report import again, to carry on from the last batch it committed.
+     */
+    fun resume(dataImportId: Int): DataImport {
+        val dataImport = fileUploadHandler.prepareResume(dataImportId)
+        dispatch()
+        return dataImport
+    }
+
+    /**
+     * Removes a job from the queue, or asks a running job to stop after the chunk it is writing.
+     *
+     * @return false if the job is neither queued nor running on this node
+     */
+    fun cancel(dataImportId: Int): Boolean {
+        if (dataImportRepository.updateStatus(dataImportId, DataImportStatus.QUEUED, DataImportStatus.CANCELLED) == 1) {
+            log.info("Cancelled queued import $dataImportId")
+            fileUploadHandler.discardResumableImport(dataImportId)
+            return true
+        }
+        return importProgressTracker.cancel(dataImportId)
+    }
+
+    fun jobs(): List<ImportJobStatus> {
+        val queuePosition = AtomicInteger()
+        return dataImportRepository.findAllByStatusInOrderByPriorityDescIdAsc(listOf(DataImportStatus.PROCESSING, DataImportStatus.QUEUED))
+                .sortedBy { it.status != DataImportStatus.PROCESSING }
+                .map { statusOf(it, if (it.status == DataImportStatus.QUEUED) queuePosition.incrementAndGet() else null) }
+    }
+
+    fun job(dataImportId: Int): ImportJobStatus? {
+        return jobs().find { it.id == dataImportId }
+                ?: dataImportRepository.findById(dataImportId).map { statusOf(it, null) }.orElse(null)
+    }
+
+    private fun statusOf(dataImport: DataImport, queuePosition: Int?): ImportJobStatus {
+        return ImportJobStatus(dataImport.id, dataImport.fileName, dataImport.importType, dataImport.academicYear,
+                dataImport.status, dataImport.priority, queuePosition, importProgressTracker.snapshotOf(dataImport.id!!))
+    }
+
+    /**
+     * Starts as many queued jobs as there are free workers, skipping those which would clash with a running job.
+     */
+    @Synchronized
+    fun dispatch() {
+        for (dataImport in dataImportRepository.findAllByStatusOrderByPriorityDescIdAsc(DataImportStatus.QUEUED)) {
+            if (running.size >= workers) {
+                return
+            }
+
+            val key = concurrencyKey(dataImport.importType, dataImport.academicYear, dataImport.period, dataImport.id.toString())
+            if (!canStart(dataImport.importType, key)) {
+                continue
+            }
+
+            // another node, or a cancel, may have got there first
+            if (dataImportRepository.updateStatus(dataImport.id!!, DataImportStatus.QUEUED, DataImportStatus.PROCESSING, environment.hostName()) == 0) {
+                continue
+            }
+
+            dataImport.status = DataImportStatus.PROCESSING
+            dataImport.processingNode = environment.hostName()
+            running[dataImport.id!!] = key
+            workerPool.execute { run(dataImport) }
+        }
+    }
+
+    private fun run(dataImport: DataImport) {
+        try {
+            log.info("Starting queued import ${dataImport.id} of ${dataImport.fileName}")
+            fileUploadHandler.runQueued(dataImport)
+        }
+        catch (e: Exception) {
+            log.error("Queued import ${dataImport.id} of ${dataImport.fileName} failed", e)
+        }
+        finally {
+            synchronized(this) {
+                running.remove(dataImport.id)
+            }
+            dispatch()
+        }
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @return false if an import with the same key, or too many occupancy report loads, are running
+     */
+    private fun canStart(importType: DataImportType?, key: String): Boolean {
+        val runningKeys = running.values + streaming.values
+        if (runningKeys.contains(key)) {
+            return false
+        }
+        return importType != DataImportType.OCCUPANCY_REPORT
+                || runningKeys.count { it.startsWith(DataImportType.OCCUPANCY_REPORT.name) } < maxOccupancyLoads
+    }
+
+    /**
+     * Jobs with the same key replace the same data, so only one of them may run at a time.
+     *
+     * @param uniqueId identifies the job, for the types of import which never clash
+     */
+    private fun concurrencyKey(importType: DataImportType?, academicYear: Int?, period: Int?, uniqueId: String): String {
+        return when (importType) {
+            DataImportType.OCCUPANCY_REPORT -> "$importType/$academicYear"
+            DataImportType.FUNDING_SUMMARY -> "$importType/$academicYear/$period"
+            else -> "$importType/$uniqueId"
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+@Component
+class ImportPipelineFactory {
+
+    /**
+     * Number of threads mapping rows into entities, 0 maps rows on the calling thread.
+     */
+    @Value("\${ilr.import.pipeline.workers}")
+    var workers: Int = 4
+
+    @Value("\${ilr.import.pipeline.chunk-size}")
+    var chunkSize: Int = 500
+
+    @Value("\${ilr.import.pipeline.max-chunks-in-flight}")
+    var maxChunksInFlight: Int = 16
+
+    fun newPipeline(): ImportPipeline {
+        return ImportPipeline(workers, chunkSize, maxChunksInFlight)
+    }
+
+}
+
+/**
+ * Runs an import as three stages: a reader thread pulling raw rows from the source, a pool of workers mapping
+ * chunks of rows into entities, and a writer stage on the calling thread which receives the mapped chunks in
+ * input order. The writer stays on the calling thread so that it takes part in the caller's transaction and
+ * security context.
+ *
+ * Chunks are handed between the stages through a bounded queue, so a slow writer stops the reader once
+ * maxChunksInFlight chunks are waiting to be written.
+ */
+class ImportPipeline(private val workers: Int,
+                     private val chunkSize: Int,
+                     private val maxChunksInFlight: Int) {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    /**
+     * @param reader returns the next raw row, or null once the source is exhausted; only ever called from the reader thread
+     * @param mapper turns a raw row into the value to write; called concurrently from the worker threads
+     * @param writer receives the mapped values chunk by chunk in input order, on the calling thread
+     */
+    fun <R, T> run(reader: () -> R?, mapper: (R) -> T, writer: (List<T>) -> Unit) {
+        if (workers < 1) {
+            runOnCallingThread(reader, mapper, writer)
+            return
+        }
+
+        val mappingPool = Executors.newFixedThreadPool(workers, namedThreadFactory("import-mapper"))
+        val chunks = ArrayBlockingQueue<CompletableFuture<List<T>>>(maxChunksInFlight)
+        val endOfInput = CompletableFuture.completedFuture(emptyList<T>())
+        val cancelled = AtomicBoolean(false)
+
+        val readerThread = namedThreadFactory("import-reader").newThread {
+            readChunks(reader, mapper, mappingPool, chunks, endOfInput, cancelled)
+        }
+        readerThread.start()
+
+        try {
+            while (true) {
+                val chunk = chunks.take()
+                if (chunk === endOfInput) {
+                    break
+                }
+                writer(resultOf(chunk))
+            }
+        }
+        finally {
+            cancelled.set(true)
+            chunks.clear()
+            readerThread.interrupt()
+            // the caller may go on reading the source once run() returns
+            readerThread.join()
+            mappingPool.shutdownNow()
+        }
+    }
+
+    private fun <R, T> readChunks(reader: () -> R?,
+                                  mapper: (R) -> T,
+                                  mappingPool: ExecutorService,
+                                  chunks: BlockingQueue<CompletableFuture<List<T>>>,
+                                  endOfInput: CompletableFuture<List<T>>,
+                                  cancelled: AtomicBoolean) {
+        try {
+            var rows = ArrayList<R>(chunkSize)
+            while (!cancelled.get()) {
+                val row = reader() ?: break
+                rows.add(row)
+                if (rows.size == chunkSize) {
+                    chunks.put(mapAsync(rows, mapper, mappingPool))
+                    rows = ArrayList(chunkSize)
+                }
+            }
+            if (rows.isNotEmpty()) {
+                chunks.put(mapAsync(rows, mapper, mappingPool))
+            }
+            chunks.put(endOfInput)
+        }
+        catch (e: InterruptedException) {
+            log.debug("import reader stopped before the end of the input")
+        }
+        catch (e: Exception) {
+            val failed = CompletableFuture<List<T>>()
+            failed.completeExceptionally(e)
+            try {
+                chunks.put(failed)
+            }
+            catch (ie: InterruptedException) {
+                log.debug("import reader stopped before the end of the input")
+            }
+        }
+    }
+
+    private fun <R, T> mapAsync(rows: List<R>, mapper: (R) -> T, mappingPool: ExecutorService): CompletableFuture<List<T>> {
+        return CompletableFuture.supplyAsync(Supplier { rows.map(mapper) }, mappingPool)
+    }
+
+    private fun <T> resultOf(chunk: CompletableFuture<List<T>>): List<T> {
+        try {
+            return chunk.get()
+        }
+        catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun <R, T> runOnCallingThread(reader: () -> R?, mapper: (R) -> T, writer: (List<T>) -> Unit) {
+        var rows = ArrayList<R>(chunkSize)
+        while (true) {
+            val row = reader() ?: break
+            rows.add(row)
+            if (rows.size == chunkSize) {
+                writer(rows.map(mapper))
+                rows = ArrayList(chunkSize)
+            }
+        }
+        if (rows.isNotEmpty()) {
+            writer(rows.map(mapper))
+        }
+    }
+
+    private fun namedThreadFactory(prefix: String): ThreadFactory {
+        val count = AtomicInteger()
+        return ThreadFactory { runnable ->
+            val thread = Thread(runnable, "$prefix-${count.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+}
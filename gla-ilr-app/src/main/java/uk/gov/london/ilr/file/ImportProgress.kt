@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.http.MediaType
+import org.springframework.stereotype.Component
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import javax.annotation.PreDestroy
+
+enum class ImportPhase {
+    VALIDATE, CLEAN, LOAD, FINALISE, COMPLETE, FAILED, CANCELLED
+}
+
+/**
+ * Thrown from the importer once an import has been cancelled, see ImportProgress.cancel().
+ */
+class ImportCancelledException(message: String) : RuntimeException(message)
+
+/**
+ * Point in time view of an import, as pushed to the progress endpoint. The rate and the estimate are only known
+ * once the import has started loading rows.
+ */
+class ImportProgressSnapshot(val dataImportId: Int?,
+                             val phase: ImportPhase,
+                             val rowsProcessed: Long,
+                             val rowsPerSecond: Long?,
+                             val secondsRemaining: Long?)
+
+/**
+ * In-memory counters of a running import. The importer updates them as it goes, so following an import does
+ * not need the data_import table.
+ */
+class ImportProgress(val dataImportId: Int?) {
+
+    @Volatile
+    var phase = ImportPhase.VALIDATE
+        private set
+
+    private val rowsProcessed = AtomicLong()
+
+    private val bytesRead = AtomicLong()
+
+    @Volatile
+    private var totalBytes = 0L
+
+    @Volatile
+    private var cancelled = false
+
+    @Volatile
+    private var loadStartedAt = 0L
+
+    private var rowsAtLoadStart = 0L
+
+    private var bytesAtLoadStart = 0L
+
+    fun phase(phase: ImportPhase) {
+        checkCancelled()
+        if (phase == ImportPhase.LOAD) {
+            rowsAtLoadStart = rowsProcessed.get()
+            bytesAtLoadStart = bytesRead.get()
+            loadStartedAt = System.nanoTime()
+        }
+        this.phase = phase
+    }
+
+    /**
+     * Sets the number of rows done before this run, for an import which is resumed part way through.
+     */
+    fun startFrom(rows: Long) {
+        rowsProcessed.set(rows)
+    }
+
+    fun addRows(rows: Int) {
+        rowsProcessed.addAndGet(rows.toLong())
+        checkCancelled()
+    }
+
+    /**
+     * Asks the import to stop; the importer throws ImportCancelledException the next time it reports progress.
+     */
+    fun cancel() {
+        cancelled = true
+    }
+
+    private fun checkCancelled() {
+        if (cancelled) {
+            throw ImportCancelledException("Import $dataImportId was cancelled")
+        }
+    }
+
+    /**
+     * Counts the bytes read from the import file, which gives the estimated time to completion. When the size of
+     * the file is not given it is taken from available(), which is exact for files on disk and uploads held in
+     * memory.
+     */
+    fun track(inputStream: InputStream, size: Long = -1): InputStream {
+        totalBytes = if (size >= 0) size else inputStream.available().toLong()
+        bytesRead.set(0)
+        return object : FilterInputStream(inputStream) {
+            override fun read(): Int {
+                val b = super.read()
+                if (b >= 0) {
+                    bytesRead.incrementAndGet()
+                }
+                return b
+            }
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                val count = super.read(b, off, len)
+                if (count > 0) {
+                    bytesRead.addAndGet(count.toLong())
+                }
+                return count
+            }
+
+            override fun skip(n: Long): Long {
+                val count = super.skip(n)
+                bytesRead.addAndGet(count)
+                return count
+            }
+        }
+    }
+
+    /**
+     * Sets the final phase, which is not refused for a cancelled import.
+     */
+    fun finish(phase: ImportPhase) {
+        this.phase = phase
+    }
+
+    fun snapshot(): ImportProgressSnapshot {
+        val rows = rowsProcessed.get()
+        if (loadStartedAt == 0L) {
+            return ImportProgressSnapshot(dataImportId, phase, rows, null, null)
+        }
+
+        val elapsedNanos = maxOf(System.nanoTime() - loadStartedAt, 1L)
+        val rowsPerSecond = (rows - rowsAtLoadStart) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos
+
+        var secondsRemaining: Long? = null
+        val bytesLoaded = bytesRead.get() - bytesAtLoadStart
+        if (phase == ImportPhase.LOAD && totalBytes > 0 && bytesLoaded > 0) {
+            val bytesRemaining = maxOf(totalBytes - bytesRead.get(), 0L)
+            secondsRemaining = TimeUnit.NANOSECONDS.toSeconds(elapsedNanos * bytesRemaining / bytesLoaded)
+        }
+        else if (phase == ImportPhase.FINALISE || phase == ImportPhase.COMPLETE) {
+            secondsRemaining = 0
+        }
+
+        return ImportProgressSnapshot(dataImportId, phase, rows, rowsPerSecond, secondsRemaining)
+    }
+
+}
+
+/**
+ * Keeps the progress of the imports running on this node and pushes it to server-sent event subscribers at a
+ * fixed interval.
+ */
+@Component
+class ImportProgressTracker {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    @Value("\${ilr.import.progress.interval-ms}")
+    var intervalMs: Long = 1000
+
+    @Value("\${ilr.import.progress.emitter-timeout-ms}")
+    var emitterTimeoutMs: Long = 3600000
+
+    private val running = ConcurrentHashMap<Int, ImportProgress>()
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "import-progress")
+        thread.isDaemon = true
+        thread
+    }
+
+    fun start(dataImport: DataImport): ImportProgress {
+        val progress = ImportProgress(dataImport.id)
+        if (dataImport.id != null) {
+            running[dataImport.id!!] = progress
+        }
+        return progress
+    }
+
+    /**
+     * @return the progress of the given import, or a detached one if it was not started through the tracker,
+     * such as when data is loaded by an initialiser
+     */
+    fun progressOf(dataImport: DataImport): ImportProgress {
+        return running[dataImport.id] ?: ImportProgress(dataImport.id)
+    }
+
+    fun finish(dataImport: DataImport, phase: ImportPhase) {
+        running.remove(dataImport.id)?.finish(phase)
+    }
+
+    /**
+     * @return the progress of an import running on this node, or null if it is not running here
+     */
+    fun snapshotOf(dataImportId: Int): ImportProgressSnapshot? {
+        return running[dataImportId]?.snapshot()
+    }
+
+    /**
+     * @return true if the import is running on this node and has been asked to stop
+     */
+    fun cancel(dataImportId: Int): Boolean {
+        val progress = running[dataImportId] ?: return false
+        progress.cancel()
+        return true
+    }
+
+    /**
+     * Sends the progress of a running import every intervalMs until it finishes, then completes the stream. The
+     * stream is completed straight away if the import is not running on this node.
+     */
+    fun subscribe(dataImportId: Int): SseEmitter {
+        val emitter = SseEmitter(emitterTimeoutMs)
+        val progress = running[dataImportId]
+        if (progress == null) {
+            emitter.complete()
+            return emitter
+        }
+
+        val future = AtomicReference<ScheduledFuture<*>>()
+        future.set(scheduler.scheduleAtFixedRate({
+            val snapshot = progress.snapshot()
+            try {
+                emitter.send(SseEmitter.event().name("progress").data(snapshot, MediaType.APPLICATION_JSON))
+                if (snapshot.phase == ImportPhase.COMPLETE || snapshot.phase == ImportPhase.FAILED || snapshot.phase == ImportPhase.CANCELLED) {
+                    emitter.complete()
+                    future.get()?.cancel(false)
+                }
+            }
+            catch (e: IOException) {
+                log.debug("Progress subscriber for import $dataImportId went away")
+                future.get()?.cancel(false)
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS))
+
+        emitter.onCompletion { future.get()?.cancel(false) }
+        emitter.onTimeout { future.get()?.cancel(false) }
+        return emitter
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        scheduler.shutdownNow()
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import org.apache.commons.io.input.TeeInputStream
+import org.apache.commons.io.output.NullOutputStream
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Keeps a copy of an uploaded file on local disk while its import is queued or may need to be resumed.
+ */
+@Component
+class ImportSpool {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    @Value("\${ilr.import.spool-dir}")
+    var spoolDir: String = System.getProperty("java.io.tmpdir") + "/ilr-imports"
+
+    /**
+     * Saves a copy of the whole upload and records it on the data import. Uploads which are already gzip
+     * compressed are saved as they are.
+     *
+     * @param compress gzip a plain CSV upload on the way to disk, such as one inflated from a zip
+     */
+    fun save(dataImport: DataImport, inputStream: InputStream, compress: Boolean = false): File {
+        val gzip = compress && !CompressedUploads.isGzip(dataImport.fileName)
+        val file = spoolFileFor(dataImport, gzip || CompressedUploads.isGzip(dataImport.fileName))
+        file.outputStream().use {
+            if (gzip) {
+                GZIPOutputStream(it).use { gzipped -> inputStream.copyTo(gzipped) }
+            }
+            else {
+                inputStream.copyTo(it)
+            }
+        }
+        dataImport.spoolFile = file.absolutePath
+        log.debug("Spooled ${dataImport.fileName} to ${file.absolutePath}")
+        return file
+    }
+
+    /**
+     * Records a copy of the upload on the data import and returns a stream which writes everything read through
+     * it to that copy, so the import can start before the upload has been saved. Closing the returned stream
+     * closes the copy.
+     */
+    fun tee(dataImport: DataImport, inputStream: InputStream): InputStream {
+        val file = spoolFileFor(dataImport, CompressedUploads.isGzip(dataImport.fileName))
+        dataImport.spoolFile = file.absolutePath
+        log.debug("Spooling ${dataImport.fileName} to ${file.absolutePath}")
+        return TeeInputStream(inputStream, file.outputStream(), true)
+    }
+
+    /**
+     * Reads the rest of an upload through the stream returned by tee, so that the copy is complete even though
+     * the import stopped part way through. The copy is dropped if the rest of the upload cannot be read.
+     */
+    fun drain(dataImport: DataImport, spooled: InputStream) {
+        try {
+            spooled.copyTo(NullOutputStream.NULL_OUTPUT_STREAM)
+        }
+        catch (e: IOException) {
+            log.warn("Unable to read the rest of ${dataImport.fileName}, it will not be resumable: ${e.message}")
+            spooled.close()
+            delete(dataImport)
+        }
+    }
+
+    /**
+     * @return the spooled copy of the upload, or null if there is none or it has since been removed
+     */
+    fun spooledFile(dataImport: DataImport): File? {
+        val path = dataImport.spoolFile ?: return null
+        val file = File(path)
+        return if (file.isFile) file else null
+    }
+
+    /**
+     * @return true if the spooled copy is gzip compressed
+     */
+    fun isCompressed(dataImport: DataImport): Boolean {
+        return dataImport.spoolFile?.endsWith(".gz") ?: false
+    }
+
+    private fun spoolFileFor(dataImport: DataImport, gzipped: Boolean): File {
+        val dir = File(spoolDir)
+        if (!dir.isDirectory && !dir.mkdirs()) {
+            throw RuntimeException("Unable to create import spool directory $spoolDir")
+        }
+        return File(dir, if (gzipped) "${dataImport.id}.csv.gz" else "${dataImport.id}.csv")
+    }
+
+    fun delete(dataImport: DataImport) {
+        val file = File(dataImport.spoolFile ?: return)
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to delete spooled import file ${file.absolutePath}")
+        }
+        dataImport.spoolFile = null
+    }
+
+}
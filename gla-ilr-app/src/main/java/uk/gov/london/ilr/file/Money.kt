@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import java.math.BigDecimal
+import java.math.RoundingMode
+import javax.persistence.AttributeConverter
+import javax.persistence.Converter
+
+private val POWERS_OF_TEN = LongArray(19).also {
+    it[0] = 1
+    for (i in 1 until it.size) {
+        it[i] = it[i - 1] * 10
+    }
+}
+
+/**
+ * Amounts of money held as a long number of pence, which is exact and needs no allocation to parse or compare.
+ * BigDecimal is only used where an amount is read from or written to the database, see PenceConverter,
+ * and where it is shown or returned as JSON.
+ */
+object Money {
+
+    /**
+     * Decodes a currency amount such as "£1,234.56", see FieldDecoders.decodeAmount. Amounts with more than two
+     * decimal places are rounded to the nearest penny, half up, as PenceConverter does for amounts already stored.
+     *
+     * @return the amount in pence, MISSING_AMOUNT for a blank cell or INVALID_AMOUNT if the cell is not an amount
+     */
+    @JvmStatic
+    fun parse(value: CharSequence?): Long {
+        val amount = FieldDecoders.decodeAmount(value)
+        if (amount == MISSING_AMOUNT || amount == INVALID_AMOUNT) {
+            return amount
+        }
+        return toPence(FieldDecoders.unscaledValue(amount), FieldDecoders.scale(amount))
+    }
+
+    private fun toPence(unscaled: Long, scale: Int): Long {
+        if (scale <= 2) {
+            val factor = POWERS_OF_TEN[2 - scale]
+            return if (Math.abs(unscaled) > Long.MAX_VALUE / factor) INVALID_AMOUNT else unscaled * factor
+        }
+        val divisor = POWERS_OF_TEN[scale - 2]
+        val pence = unscaled / divisor
+        val remainder = Math.abs(unscaled % divisor)
+        return when {
+            remainder * 2 < divisor -> pence
+            unscaled < 0 -> pence - 1
+            else -> pence + 1
+        }
+    }
+
+    @JvmStatic
+    fun toBigDecimal(pence: Long?): BigDecimal? {
+        return if (pence == null) null else BigDecimal.valueOf(pence, 2)
+    }
+
+    /**
+     * @throws ArithmeticException if the amount is not a whole number of pence or does not fit in a long
+     */
+    @JvmStatic
+    fun fromBigDecimal(amount: BigDecimal?): Long? {
+        return amount?.movePointRight(2)?.longValueExact()
+    }
+
+}
+
+/**
+ * Maps an amount in pence to the decimal pounds and pence held in the database. Amounts loaded before they were
+ * parsed as whole pence may have more decimal places, these are read to the nearest penny.
+ */
+@Converter
+class PenceConverter : AttributeConverter<Long?, BigDecimal?> {
+
+    override fun convertToDatabaseColumn(pence: Long?): BigDecimal? {
+        return Money.toBigDecimal(pence)
+    }
+
+    override fun convertToEntityAttribute(amount: BigDecimal?): Long? {
+        return Money.fromBigDecimal(amount?.setScale(2, RoundingMode.HALF_UP))
+    }
+
+}
@@ -9,26 +9,40 @@ package uk.gov.london.ilr.file
 
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 import uk.gov.london.common.CSVFile
 import java.io.InputStream
 import java.lang.IllegalArgumentException
-import java.lang.StringBuilder
+
+private val LINE_SEPARATOR = System.lineSeparator()
 
 @Service
-class SplitByUkprnCsvImporter @Autowired constructor(val fileService: FileService) {
+class SplitByUkprnCsvImporter @Autowired constructor(val fileService: FileService,
+                                                     val importProgressTracker: ImportProgressTracker) {
 
     internal var log = LoggerFactory.getLogger(javaClass)
 
+    /**
+     * Most per-UKPRN spool files written to at once.
+     */
+    @Value("\${ilr.import.split-by-ukprn.max-open-files}")
+    var maxOpenFiles: Int = 64
+
     fun createDataValidationIssueRecords(dataImport: DataImport, inputStream: InputStream) {
         val csvFile = CSVFile(inputStream)
         createDataValidationIssueRecords(dataImport, csvFile)
     }
 
     fun createDataValidationIssueRecords(dataImport: DataImport, csvFile: CSVFile) {
+        val progress = importProgressTracker.progressOf(dataImport)
         validateCSVFile(csvFile)
-        val contentSplitByUKPRN = splitContentPerUKPRN(csvFile)
-        saveSplitByUKPRNContent(dataImport, contentSplitByUKPRN)
+        SpoolBuckets<Int>(maxOpenFiles).use { contentSplitByUKPRN ->
+            progress.phase(ImportPhase.LOAD)
+            splitContentPerUKPRN(csvFile, progress, contentSplitByUKPRN)
+            progress.phase(ImportPhase.FINALISE)
+            saveSplitByUKPRNContent(dataImport, contentSplitByUKPRN)
+        }
     }
 
     private fun validateCSVFile(csvFile: CSVFile) {
@@ -37,44 +51,47 @@ class SplitByUkprnCsvImporter @Autowired constructor(val fileService: FileServic
         }
     }
 
-    private fun splitContentPerUKPRN(csvFile: CSVFile) : Map<Int, StringBuilder> {
-        val contentSplitByUKPRN = mutableMapOf<Int, StringBuilder>()
-
+    /**
+     * Spools the rows to a file per UKPRN as they are read, so that the file is never held in memory.
+     */
+    private fun splitContentPerUKPRN(csvFile: CSVFile, progress: ImportProgress, contentSplitByUKPRN: SpoolBuckets<Int>) {
+        val header = csvFile.headers.joinToString(",") + LINE_SEPARATOR
         while (csvFile.nextRow()) {
-            processDataValidationIssuesRow(csvFile, contentSplitByUKPRN)
+            processDataValidationIssuesRow(csvFile, header, contentSplitByUKPRN)
+            progress.addRows(1)
         }
-
-        return contentSplitByUKPRN
     }
 
-    private fun processDataValidationIssuesRow(csvFile: CSVFile, contentSplitByUKPRN: MutableMap<Int, StringBuilder>) {
+    private fun processDataValidationIssuesRow(csvFile: CSVFile, header: String, contentSplitByUKPRN: SpoolBuckets<Int>) {
         val ukprn = csvFile.getIntegerOrNull(UKPRN)
         if (ukprn != null) {
-            appendRowToContent(ukprn, csvFile, contentSplitByUKPRN)
+            appendRowToContent(ukprn, csvFile, header, contentSplitByUKPRN)
         }
         else {
             log.warn("$UKPRN value {} invalid at row {}!", csvFile.getString(UKPRN), csvFile.rowIndex)
         }
     }
 
-    private fun appendRowToContent(ukprn: Int, csvFile: CSVFile, contentSplitByUKPRN: MutableMap<Int, StringBuilder>) {
-        if (contentSplitByUKPRN[ukprn] == null) {
-            contentSplitByUKPRN[ukprn] = StringBuilder(csvFile.headers.joinToString(",")).appendln()
+    private fun appendRowToContent(ukprn: Int, csvFile: CSVFile, header: String, contentSplitByUKPRN: SpoolBuckets<Int>) {
+        if (!contentSplitByUKPRN.contains(ukprn)) {
+            contentSplitByUKPRN.append(ukprn, header)
         }
-        contentSplitByUKPRN[ukprn]?.appendln(csvFile.currentRowAsString)
+        contentSplitByUKPRN.append(ukprn, csvFile.currentRowAsString + LINE_SEPARATOR)
     }
 
-    private fun saveSplitByUKPRNContent(dataImport: DataImport, contentSplitByUKPRN: Map<Int, StringBuilder>) {
+    private fun saveSplitByUKPRNContent(dataImport: DataImport, contentSplitByUKPRN: SpoolBuckets<Int>) {
         val fileType = dataImport.importType!!.description
         val fileSuffix = extractFileSuffixFrom(dataImport)
 
-        for ((ukprn, content) in contentSplitByUKPRN) {
-            fileService.saveFile(dataImport.id, fileType, fileSuffix, ukprn, content.toString())
+        for (ukprn in contentSplitByUKPRN.keys) {
+            contentSplitByUKPRN.reader(ukprn).use { content ->
+                fileService.saveFile(dataImport.id, fileType, fileSuffix, ukprn, content)
+            }
         }
     }
 
     private fun extractFileSuffixFrom(dataImport: DataImport): String {
-        val fileName = dataImport.fileName!!
+        val fileName = CompressedUploads.csvName(dataImport.fileName!!)
         return if (dataImport.importType!!.isMonthlyFile) {
             fileName.substring(dataImport.importType!!.description.length + 1, fileName.length - 4)
         }
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import java.io.Closeable
+import java.io.Reader
+import java.io.Writer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Text split by key into temporary files, one per key, such as the rows of a file split by UKPRN. At most
+ * maxOpenWriters files are open for writing at once: the least recently written one is closed to make room,
+ * and opened again to append to it if more text comes for its key. close() deletes all the files.
+ */
+class SpoolBuckets<K>(private val maxOpenWriters: Int) : Closeable {
+
+    private class Bucket(val path: Path) {
+        var writer: Writer? = null
+    }
+
+    /**
+     * In the order the keys were first seen.
+     */
+    private val buckets = LinkedHashMap<K, Bucket>()
+
+    /**
+     * Buckets with an open writer, least recently written first.
+     */
+    private val openBuckets = LinkedHashMap<K, Bucket>(16, 0.75f, true)
+
+    val keys: Set<K>
+        get() = buckets.keys
+
+    fun contains(key: K): Boolean {
+        return buckets.containsKey(key)
+    }
+
+    fun append(key: K, text: String) {
+        val bucket = buckets.getOrPut(key) { Bucket(Files.createTempFile("ilr-", ".csv")) }
+        writerFor(key, bucket).write(text)
+    }
+
+    private fun writerFor(key: K, bucket: Bucket): Writer {
+        val writer = bucket.writer
+        if (writer != null) {
+            openBuckets[key]
+            return writer
+        }
+
+        if (openBuckets.size >= maxOpenWriters) {
+            val eldest = openBuckets.entries.iterator()
+            closeWriter(eldest.next().value)
+            eldest.remove()
+        }
+        val opened = Files.newBufferedWriter(bucket.path, StandardCharsets.UTF_8, StandardOpenOption.APPEND)
+        bucket.writer = opened
+        openBuckets[key] = bucket
+        return opened
+    }
+
+    /**
+     * Finishes writing the key's text and reads it back from the start.
+     */
+    fun reader(key: K): Reader {
+        val bucket = buckets.getValue(key)
+        closeWriter(bucket)
+        openBuckets.remove(key)
+        return Files.newBufferedReader(bucket.path, StandardCharsets.UTF_8)
+    }
+
+    private fun closeWriter(bucket: Bucket) {
+        bucket.writer?.close()
+        bucket.writer = null
+    }
+
+    override fun close() {
+        for (bucket in buckets.values) {
+            try {
+                closeWriter(bucket)
+            }
+            finally {
+                Files.deleteIfExists(bucket.path)
+            }
+        }
+        buckets.clear()
+        openBuckets.clear()
+    }
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.file
+
+import java.io.Closeable
+import java.io.Reader
+import java.io.Writer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+/**
+ * Text written to a temporary file rather than held on the heap, for output which grows with the upload it
+ * describes, such as the error file of a supplementary data upload. It can then be streamed to the database, see
+ * FileService.saveFile. close() deletes the file.
+ */
+class SpooledText : Closeable {
+
+    private val path = Files.createTempFile("ilr-", ".csv")
+
+    val writer: Writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)
+
+    /**
+     * Finishes writing and reads the text back from the start.
+     */
+    fun reader(): Reader {
+        writer.close()
+        return Files.newBufferedReader(path, StandardCharsets.UTF_8)
+    }
+
+    override fun close() {
+        writer.close()
+        Files.deleteIfExists(path)
+    }
+
+}
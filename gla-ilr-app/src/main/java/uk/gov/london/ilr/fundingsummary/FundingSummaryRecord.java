@@ -8,6 +8,8 @@
 package uk.gov.london.ilr.fundingsummary;
 
 import com.querydsl.core.annotations.QueryEntity;
+import uk.gov.london.ilr.file.Money;
+import uk.gov.london.ilr.file.PenceConverter;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
@@ -38,9 +40,14 @@ public class FundingSummaryRecord {
 
     private String category;
 
-    private BigDecimal monthTotal;
+    /**
+     * Amounts are held in pence, see Money, and returned as pounds and pence.
+     */
+    @Convert(converter = PenceConverter.class)
+    private Long monthTotal;
 
-    private BigDecimal totalPayment;
+    @Convert(converter = PenceConverter.class)
+    private Long totalPayment;
 
     public Integer getId() {
         return id;
@@ -79,17 +86,17 @@ public class FundingSummaryRecord {
     }
 
     public BigDecimal getMonthTotal() {
-        return monthTotal;
+        return Money.toBigDecimal(monthTotal);
     }
 
     public BigDecimal getTotalPayment() {
-        return totalPayment;
+        return Money.toBigDecimal(totalPayment);
     }
 
     public FundingSummaryRecord() {}
 
     public FundingSummaryRecord(Integer academicYear, Integer period, Integer actualYear, Integer actualMonth, Integer ukprn,
-                         String fundingLine, String source, String category, BigDecimal monthTotal, BigDecimal totalPayment) {
+                         String fundingLine, String source, String category, Long monthTotal, Long totalPayment) {
         this.academicYear = academicYear;
         this.period = period;
         this.actualYear = actualYear;
@@ -11,16 +11,29 @@ import org.springframework.data.domain.Page
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
 import uk.gov.london.common.CSVFile
-import uk.gov.london.common.CSVRowSource
+import uk.gov.london.ilr.file.BulkLoaderFactory
+import uk.gov.london.ilr.file.CsvColumns
+import uk.gov.london.ilr.file.CsvRow
 import uk.gov.london.ilr.file.DataImport
+import uk.gov.london.ilr.file.ImportPhase
+import uk.gov.london.ilr.file.ImportPipelineFactory
+import uk.gov.london.ilr.file.ImportProgress
+import uk.gov.london.ilr.file.ImportProgressTracker
 import uk.gov.london.ilr.file.UKPRN
+import uk.gov.london.ilr.file.rowReader
 import java.io.InputStream
 import java.time.LocalDate
 import java.time.format.DateTimeFormatter
 import java.util.ArrayList
 
+const val FUNDING_SUMMARY_RECORD_COLUMNS = "academic_year, period, actual_year, actual_month, ukprn, funding_line, " +
+        "source, category, month_total, total_payment"
+
 @Service
-class FundingSummaryService(val fundingSummaryRecordRepository: FundingSummaryRecordRepository) {
+class FundingSummaryService(val fundingSummaryRecordRepository: FundingSummaryRecordRepository,
+                            val importPipelineFactory: ImportPipelineFactory,
+                            val bulkLoaderFactory: BulkLoaderFactory,
+                            val importProgressTracker: ImportProgressTracker) {
 
     fun getFundingAcademicYears(): List<Int> {
         return fundingSummaryRecordRepository.findDistinctAcademicYears()
@@ -31,10 +44,10 @@ class FundingSummaryService(val fundingSummaryRecordRepository: FundingSummaryRe
     }
 
     fun createSummaryRecords(dataImport: DataImport, inputStream: InputStream) {
-        createSummaryRecords(inputStream, dataImport.academicYear!!, dataImport.period!!)
+        createSummaryRecords(inputStream, dataImport.academicYear!!, dataImport.period!!, importProgressTracker.progressOf(dataImport))
     }
 
-    fun createSummaryRecords(inputStream: InputStream, academicYear: Int, period: Int) {
+    fun createSummaryRecords(inputStream: InputStream, academicYear: Int, period: Int, progress: ImportProgress = ImportProgress(null)) {
         val actualMonth = if (period <= 5) period + 7 else period - 5
         val actualYear = if (period > 5) academicYear + 1 else academicYear
         val actualMonthName = if (period <= 12) getMonthName(actualYear, actualMonth) else null
@@ -50,11 +63,25 @@ class FundingSummaryService(val fundingSummaryRecordRepository: FundingSummaryRe
 
         validateColumnHeader(expectedColumns, actualColumns)
 
+        progress.phase(ImportPhase.CLEAN)
         fundingSummaryRecordRepository.deleteByAcademicYearAndPeriod(academicYear, period)
+        fundingSummaryRecordRepository.flush()
+
+        val csvColumns = CsvColumns(actualColumns)
+        val columns = FundingSummaryColumns(csvColumns, actualMonthName)
+        val bulkLoader = bulkLoaderFactory.newLoader()
+        progress.phase(ImportPhase.LOAD)
+        importPipelineFactory.newPipeline().run(rowReader(csvFile, csvColumns, columns.indexes),
+                { row -> createFundingSummaryRecord(row, columns, academicYear, period, actualYear, actualMonth) },
+                { records ->
+                    bulkLoader.load("funding_summary_record", FUNDING_SUMMARY_RECORD_COLUMNS, records, ::fundingSummaryRecordValues)
+                    progress.addRows(records.size)
+                })
+    }
 
-        while (csvFile.nextRow()) {
-            fundingSummaryRecordRepository.save(createFundingSummaryRecord(csvFile, academicYear, period, actualYear, actualMonth, actualMonthName))
-        }
+    private fun fundingSummaryRecordValues(record: FundingSummaryRecord): Array<Any?> {
+        return arrayOf(record.academicYear, record.period, record.actualYear, record.actualMonth, record.ukprn,
+                record.fundingLine, record.source, record.category, record.monthTotal, record.totalPayment)
     }
 
     private fun getMonthName(year: Int, monthName: Int): String {
@@ -77,18 +104,33 @@ class FundingSummaryService(val fundingSummaryRecordRepository: FundingSummaryRe
         }
     }
 
-    fun createFundingSummaryRecord(csvRow: CSVRowSource, academicYear: Int, period: Int, actualYear: Int, actualMonth: Int, actualMonthName: String?): FundingSummaryRecord {
+    fun createFundingSummaryRecord(csvRow: CsvRow, columns: FundingSummaryColumns, academicYear: Int, period: Int, actualYear: Int, actualMonth: Int): FundingSummaryRecord {
         return FundingSummaryRecord(
                 academicYear,
                 period,
                 actualYear,
                 actualMonth,
-                csvRow.getInteger(UKPRN),
-                csvRow.getString("Funding Line"),
-                csvRow.getString("Source"),
-                csvRow.getString("Category"),
-                if (actualMonthName != null) csvRow.getCurrencyValue(actualMonthName) else null,
-                csvRow.getCurrencyValue("Year to date"))
+                csvRow.getInteger(columns.ukprn),
+                csvRow.getString(columns.fundingLine),
+                csvRow.getString(columns.source),
+                csvRow.getString(columns.category),
+                csvRow.getPence(columns.monthTotal),
+                csvRow.getPence(columns.yearToDate))
     }
 
 }
+
+/**
+ * Positions of the funding summary columns in one file, resolved once from the header row. There is no month
+ * total column for periods after the end of the year, in which case monthTotal is -1.
+ */
+class FundingSummaryColumns(columns: CsvColumns, actualMonthName: String?) {
+    val ukprn = columns.indexOf(UKPRN)
+    val fundingLine = columns.indexOf("Funding Line")
+    val source = columns.indexOf("Source")
+    val category = columns.indexOf("Category")
+    val monthTotal = if (actualMonthName != null) columns.indexOf(actualMonthName) else -1
+    val yearToDate = columns.indexOf("Year to date")
+
+    val indexes = intArrayOf(ukprn, fundingLine, source, category, monthTotal, yearToDate)
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import kotlin.reflect.KMutableProperty1
+
+/**
+ * How the earning periods of an occupancy report are stored: one earning_period row per month, or one
+ * earning_profile row per learning delivery. v_earning_period reads both.
+ */
+enum class EarningLayout {
+    PERIODS, PROFILE
+}
+
+/**
+ * Months of the year as stored in earning_period.month.
+ */
+val EARNING_PERIOD_MONTHS = 1..12
+
+/**
+ * The cash columns of each month of an earning profile, in the order of the cash columns of an earning period.
+ */
+private val EARNING_PROFILE_CASH: Array<Array<KMutableProperty1<EarningProfile, Long?>>> = arrayOf(
+        arrayOf(EarningProfile::onProgrammeEarnedCash1, EarningProfile::balancingPaymentEarnedCash1, EarningProfile::aimAchievementEarnedCash1, EarningProfile::jobOutcomeEarnedCash1, EarningProfile::learningSupportEarnedCash1),
+        arrayOf(EarningProfile::onProgrammeEarnedCash2, EarningProfile::balancingPaymentEarnedCash2, EarningProfile::aimAchievementEarnedCash2, EarningProfile::jobOutcomeEarnedCash2, EarningProfile::learningSupportEarnedCash2),
+        arrayOf(EarningProfile::onProgrammeEarnedCash3, EarningProfile::balancingPaymentEarnedCash3, EarningProfile::aimAchievementEarnedCash3, EarningProfile::jobOutcomeEarnedCash3, EarningProfile::learningSupportEarnedCash3),
+        arrayOf(EarningProfile::onProgrammeEarnedCash4, EarningProfile::balancingPaymentEarnedCash4, EarningProfile::aimAchievementEarnedCash4, EarningProfile::jobOutcomeEarnedCash4, EarningProfile::learningSupportEarnedCash4),
+        arrayOf(EarningProfile::onProgrammeEarnedCash5, EarningProfile::balancingPaymentEarnedCash5, EarningProfile::aimAchievementEarnedCash5, EarningProfile::jobOutcomeEarnedCash5, EarningProfile::learningSupportEarnedCash5),
+        arrayOf(EarningProfile::onProgrammeEarnedCash6, EarningProfile::balancingPaymentEarnedCash6, EarningProfile::aimAchievementEarnedCash6, EarningProfile::jobOutcomeEarnedCash6, EarningProfile::learningSupportEarnedCash6),
+        arrayOf(EarningProfile::onProgrammeEarnedCash7, EarningProfile::balancingPaymentEarnedCash7, EarningProfile::aimAchievementEarnedCash7, EarningProfile::jobOutcomeEarnedCash7, EarningProfile::learningSupportEarnedCash7),
+        arrayOf(EarningProfile::onProgrammeEarnedCash8, EarningProfile::balancingPaymentEarnedCash8, EarningProfile::aimAchievementEarnedCash8, EarningProfile::jobOutcomeEarnedCash8, EarningProfile::learningSupportEarnedCash8),
+        arrayOf(EarningProfile::onProgrammeEarnedCash9, EarningProfile::balancingPaymentEarnedCash9, EarningProfile::aimAchievementEarnedCash9, EarningProfile::jobOutcomeEarnedCash9, EarningProfile::learningSupportEarnedCash9),
+        arrayOf(EarningProfile::onProgrammeEarnedCash10, EarningProfile::balancingPaymentEarnedCash10, EarningProfile::aimAchievementEarnedCash10, EarningProfile::jobOutcomeEarnedCash10, EarningProfile::learningSupportEarnedCash10),
+        arrayOf(EarningProfile::onProgrammeEarnedCash11, EarningProfile::balancingPaymentEarnedCash11, EarningProfile::aimAchievementEarnedCash11, EarningProfile::jobOutcomeEarnedCash11, EarningProfile::learningSupportEarnedCash11),
+        arrayOf(EarningProfile::onProgrammeEarnedCash12, EarningProfile::balancingPaymentEarnedCash12, EarningProfile::aimAchievementEarnedCash12, EarningProfile::jobOutcomeEarnedCash12, EarningProfile::learningSupportEarnedCash12))
+
+/**
+ * @return true if none of the cash columns of the earning period holds a non-zero amount
+ */
+fun isEmpty(earningPeriod: EarningPeriod): Boolean {
+    return isZero(earningPeriod.onProgrammeEarnedCash)
+            && isZero(earningPeriod.balancingPaymentEarnedCash)
+            && isZero(earningPeriod.aimAchievementEarnedCash)
+            && isZero(earningPeriod.jobOutcomeEarnedCash)
+            && isZero(earningPeriod.learningSupportEarnedCash)
+}
+
+private fun isZero(pence: Long?): Boolean {
+    return pence == null || pence == 0L
+}
+
+/**
+ * Occupancy report imports may store earning periods sparsely, leaving out the months in which nothing was
+ * earned. This gives the twelve months of a learning delivery back, with an empty earning period in place of
+ * each month which is not stored, in month order.
+ *
+ * @param returnPeriod the return given to the months filled in, normally that of the learning delivery
+ */
+fun denseEarningPeriods(learningDelivery: LearningDeliveryPK, earningPeriods: Collection<EarningPeriod>, returnPeriod: Int?): List<EarningPeriod> {
+    val byMonth = earningPeriods.associateBy { it.id.month }
+    return EARNING_PERIOD_MONTHS.map { month ->
+        byMonth[month] ?: EarningPeriod(EarningPeriodPK(learningDelivery.ukprn, learningDelivery.learnerReferenceNumber,
+                learningDelivery.aimSequenceNumber, learningDelivery.year, month), returnPeriod = returnPeriod)
+    }
+}
+
+/**
+ * @return the profile holding the given earning periods of a learning delivery, with no earnings in the months
+ * not given
+ */
+fun earningProfileOf(learningDelivery: LearningDeliveryPK, earningPeriods: Collection<EarningPeriod>, returnPeriod: Int?): EarningProfile {
+    val earningProfile = EarningProfile(learningDelivery.copy(), returnPeriod)
+    for (earningPeriod in earningPeriods) {
+        val cash = EARNING_PROFILE_CASH[earningPeriod.id.month - 1]
+        cash[0].set(earningProfile, earningPeriod.onProgrammeEarnedCash)
+        cash[1].set(earningProfile, earningPeriod.balancingPaymentEarnedCash)
+        cash[2].set(earningProfile, earningPeriod.aimAchievementEarnedCash)
+        cash[3].set(earningProfile, earningPeriod.jobOutcomeEarnedCash)
+        cash[4].set(earningProfile, earningPeriod.learningSupportEarnedCash)
+    }
+    return earningProfile
+}
+
+/**
+ * @return the twelve earning periods held in the profile, in month order
+ */
+fun earningPeriodsOf(earningProfile: EarningProfile): List<EarningPeriod> {
+    val id = earningProfile.id
+    return EARNING_PERIOD_MONTHS.map { month ->
+        val cash = EARNING_PROFILE_CASH[month - 1]
+        EarningPeriod(EarningPeriodPK(id.ukprn, id.learnerReferenceNumber, id.aimSequenceNumber, id.year, month),
+                cash[0].get(earningProfile),
+                cash[1].get(earningProfile),
+                cash[2].get(earningProfile),
+                cash[3].get(earningProfile),
+                cash[4].get(earningProfile),
+                earningProfile.returnPeriod)
+    }
+}
+
+/**
+ * @return the cash columns of the profile, month by month
+ */
+internal fun earningProfileCash(earningProfile: EarningProfile): List<Long?> {
+    return EARNING_PROFILE_CASH.flatMap { month -> month.map { it.get(earningProfile) } }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import org.slf4j.LoggerFactory
+
+/**
+ * Import-scoped answer to "does this provider have a learning delivery for this learner?", in any year.
+ *
+ * The learner reference numbers of a provider are loaded in one query the first time the provider is asked
+ * about and kept in a least recently used cache of at most maxLearners learner reference numbers, so that a file
+ * touching many providers does not hold all of them at once. A provider with more learners than that on its
+ * own is not cached, and each of its learners is looked up with a query instead.
+ */
+class KnownLearners(private val learningDeliveryRepository: LearningDeliveryRepository, private val maxLearners: Int) {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    private var cachedLearners = 0
+
+    /**
+     * In least recently used first order.
+     */
+    private val byProvider = LinkedHashMap<Int, Set<String>>(16, 0.75f, true)
+
+    private val uncachedProviders = HashSet<Int>()
+
+    fun exists(ukprn: Int, learnerReferenceNumber: String): Boolean {
+        if (uncachedProviders.contains(ukprn)) {
+            return learningDeliveryRepository.countAllByIdUkprnAndIdLearnerReferenceNumber(ukprn, learnerReferenceNumber) > 0
+        }
+
+        var learners = byProvider[ukprn]
+        if (learners == null) {
+            learners = learningDeliveryRepository.findDistinctLearnerReferenceNumbersByUkprn(ukprn).toHashSet()
+            if (learners.size > maxLearners) {
+                log.debug("UKPRN $ukprn has ${learners.size} learners, more than can be cached")
+                uncachedProviders.add(ukprn)
+                return learners.contains(learnerReferenceNumber)
+            }
+            evictFor(learners.size)
+            cachedLearners += learners.size
+            byProvider[ukprn] = learners
+        }
+        return learners.contains(learnerReferenceNumber)
+    }
+
+    private fun evictFor(learners: Int) {
+        val iterator = byProvider.values.iterator()
+        while (cachedLearners + learners > maxLearners && iterator.hasNext()) {
+            cachedLearners -= iterator.next().size
+            iterator.remove()
+        }
+    }
+
+}
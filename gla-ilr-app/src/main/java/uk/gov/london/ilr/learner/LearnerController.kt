@@ -7,9 +7,10 @@
  */
 package uk.gov.london.ilr.learner
 
+import org.springframework.core.io.Resource
 import org.springframework.data.domain.Pageable
 import org.springframework.data.web.PageableDefault
-import org.springframework.http.MediaType
+import org.springframework.http.HttpHeaders
 import org.springframework.http.ResponseEntity
 import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.stereotype.Controller
@@ -19,6 +20,7 @@ import org.springframework.ui.set
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestHeader
 import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.multipart.MultipartFile
 import org.springframework.web.servlet.mvc.support.RedirectAttributes
@@ -31,9 +33,11 @@ import uk.gov.london.ilr.security.UserService
 import uk.gov.london.ilr.web.PagingControls
 import java.time.format.DateTimeFormatter
 import java.util.*
+import javax.servlet.http.HttpServletRequest
 
 @Controller
 class LearnerController(private val fileUploadHandler: FileUploadHandler,
+                        private val importJobService: ImportJobService,
                         private val learnerService: LearnerService,
                         private val supplementaryDataService: SupplementaryDataService,
                         private val userService: UserService,
@@ -45,7 +49,7 @@ class LearnerController(private val fileUploadHandler: FileUploadHandler,
     @PostMapping("/uploadSupplementalData")
     fun handleFileUploadSupplementalData(@RequestParam("file") file: MultipartFile, redirectAttributes: RedirectAttributes): String {
         try {
-            if (!file.originalFilename!!.toUpperCase().endsWith(".CSV")) {
+            if (!CompressedUploads.csvName(file.originalFilename!!).toUpperCase().endsWith(".CSV")) {
                 throw RuntimeException("Upload failed: File must be in CSV format, to do this save an excel file as a .CSV")
             }
 
@@ -63,6 +67,33 @@ class LearnerController(private val fileUploadHandler: FileUploadHandler,
         return "redirect:/learners"
     }
 
+    /**
+     * Takes the file as the raw request body and imports it as it arrives, see FileController.handleStreamingFileUpload.
+     */
+    @PermissionRequired(UPLOAD_SUPPLEMENTAL_FILE)
+    @PostMapping("/uploadSupplementalData/stream")
+    fun handleStreamingUploadSupplementalData(@RequestParam("fileName") fileName: String, request: HttpServletRequest, redirectAttributes: RedirectAttributes): String {
+        try {
+            if (!CompressedUploads.csvName(fileName).toUpperCase().endsWith(".CSV")) {
+                throw RuntimeException("Upload failed: File must be in CSV format, to do this save an excel file as a .CSV")
+            }
+
+            val result = importJobService.runStreamed(fileName, DataImportType.SUPPLEMENTARY_DATA) {
+                fileUploadHandler.upload(fileName, request.inputStream, DataImportType.SUPPLEMENTARY_DATA, userService.currentUserName(), request.contentLengthLong)
+            } ?: throw RuntimeException("Too many files are being uploaded at the moment, please try again shortly")
+
+            if (result.errorMessages.isNotEmpty()) {
+                redirectAttributes.addFlashAttribute("errorMessageList", result.errorMessages)
+            } else {
+                redirectAttributes.addFlashAttribute("numberOfRecordsUpdated", "File uploaded and " + result.numberOfRecords.toString() + " learner records updated")
+            }
+        } catch (e: Exception) {
+            redirectAttributes.addFlashAttribute("errorMessage", e.message)
+        }
+
+        return "redirect:/learners"
+    }
+
     @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY', 'ORG_ADMIN', 'PROJECT_EDITOR', 'PROJECT_READER')" )
     @GetMapping("/learners")
     @Transactional
@@ -93,7 +124,8 @@ class LearnerController(private val fileUploadHandler: FileUploadHandler,
 
     @PreAuthorize("isAuthenticated()")
     @GetMapping("/downloadErrorFile/{importId}", produces = ["text/csv"])
-    fun downloadReport(@PathVariable importId: Int) : ResponseEntity<String> {
+    fun downloadReport(@PathVariable importId: Int,
+                       @RequestHeader requestHeaders: HttpHeaders) : ResponseEntity<Resource> {
 
         val dataImportRecord = dataImportService.getDataImportRecord(importId)
                 ?: throw RuntimeException("no record found with ID $importId")
@@ -109,10 +141,10 @@ class LearnerController(private val fileUploadHandler: FileUploadHandler,
         }
 
         return if (file == null) {
-            buildResponseEntity("error.txt", "text/plain", "No error file exists for report")
+            FileContents.download("error.txt", "text/plain", "No error file exists for report")
         }
         else {
-            buildResponseEntity(getFileNameForDownload(dataImportRecord), "text/csv", file.content)
+            FileContents.download(getFileNameForDownload(dataImportRecord), "text/csv", fileService.contentOf(file), requestHeaders)
         }
     }
 
@@ -125,13 +157,6 @@ class LearnerController(private val fileUploadHandler: FileUploadHandler,
 
     }
 
-    private fun buildResponseEntity(fileName: String, contentType: String, content: String) : ResponseEntity<String> {
-        return ResponseEntity.ok()
-                .header("Content-disposition", "attachment;filename=$fileName")
-                .contentType(MediaType.parseMediaType(contentType))
-                .body(content)
-    }
-
     private fun searchNotAllowed(ukprn: Int?): Boolean {
         val currentUser = userService.currentUser
         return !currentUser.isGla && ukprn != null && !currentUser.ukprns.contains(ukprn)
@@ -7,8 +7,8 @@
  */
 package uk.gov.london.ilr.learner
 
+import uk.gov.london.ilr.file.PenceConverter
 import java.io.Serializable
-import java.math.BigDecimal
 import java.time.LocalDate
 import java.time.LocalDateTime
 import java.time.OffsetDateTime
@@ -146,21 +146,165 @@ class LearningDelivery (
         var aim : LearningAim? = null
 }
 
+/**
+ * Earned cash amounts are in pence, see Money.
+ */
 @Entity
 class EarningPeriod (
 
         @Id
         var id: EarningPeriodPK,
-        var onProgrammeEarnedCash: BigDecimal? = null,
-        var balancingPaymentEarnedCash: BigDecimal? = null,
-        var aimAchievementEarnedCash: BigDecimal? = null,
-        var jobOutcomeEarnedCash: BigDecimal? = null,
-        var learningSupportEarnedCash: BigDecimal? = null,
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash: Long? = null,
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash: Long? = null,
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash: Long? = null,
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash: Long? = null,
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash: Long? = null,
         @Column(name = "return")
         var returnPeriod	: Int? = null
 
 )
 
+/**
+ * The twelve earning periods of a learning delivery held in one row, which is how they are stored when
+ * ilr.occupancy-report.earning-layout is PROFILE. Each cash column is suffixed with its month, see
+ * earningPeriodsOf() for the earning periods it holds. Amounts are in pence, see Money.
+ */
+@Entity
+class EarningProfile (
+
+        @Id
+        var id: LearningDeliveryPK,
+        @Column(name = "return")
+        var returnPeriod: Int? = null
+
+) {
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash1: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash1: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash1: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash1: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash1: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash2: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash2: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash2: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash2: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash2: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash3: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash3: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash3: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash3: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash3: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash4: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash4: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash4: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash4: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash4: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash5: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash5: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash5: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash5: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash5: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash6: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash6: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash6: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash6: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash6: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash7: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash7: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash7: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash7: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash7: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash8: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash8: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash8: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash8: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash8: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash9: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash9: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash9: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash9: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash9: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash10: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash10: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash10: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash10: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash10: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash11: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash11: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash11: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash11: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash11: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var onProgrammeEarnedCash12: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var balancingPaymentEarnedCash12: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var aimAchievementEarnedCash12: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var jobOutcomeEarnedCash12: Long? = null
+        @Convert(converter = PenceConverter::class)
+        var learningSupportEarnedCash12: Long? = null
+}
+
 @Entity
 class LearningAim (
         @Id
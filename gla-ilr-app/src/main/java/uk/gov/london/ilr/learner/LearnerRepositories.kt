@@ -16,6 +16,9 @@ interface LearningDeliveryRepository : JpaRepository<LearningDelivery, LearningD
     fun findAllByIdUkprnAndIdLearnerReferenceNumberAndIdYearOrderByIdAimSequenceNumber(ukprn: Int,lrn: String,  year: Int): List<LearningDelivery>
     fun countAllByIdUkprnAndIdLearnerReferenceNumber(ukprn: Int,lrn: String): Int
 
+    @Query(value = "select distinct learner_reference_number from learning_delivery where ukprn = ?1", nativeQuery = true)
+    fun findDistinctLearnerReferenceNumbersByUkprn(ukprn: Int): List<String>
+
     @Query(value = "delete from learning_delivery where year = ?1", nativeQuery = true)
     @Modifying
     fun deleteAllByIdYear(year: Int)
@@ -23,18 +26,32 @@ interface LearningDeliveryRepository : JpaRepository<LearningDelivery, LearningD
 
 }
 interface EarningPeriodRepository: JpaRepository<EarningPeriod, EarningPeriodPK> {
+    /**
+     * Only the months stored for the learning delivery, see denseEarningPeriods().
+     */
+    fun findAllByIdUkprnAndIdLearnerReferenceNumberAndIdAimSequenceNumberAndIdYearOrderByIdMonth(ukprn: Int, lrn: String, aimSequenceNumber: Int, year: Int): List<EarningPeriod>
+
     @Query(value = "delete from earning_period where year = ?1", nativeQuery = true)
     @Modifying
     fun deleteAllByIdYear(year: Int)
 }
 
+interface EarningProfileRepository: JpaRepository<EarningProfile, LearningDeliveryPK> {
+    @Query(value = "delete from earning_profile where year = ?1", nativeQuery = true)
+    @Modifying
+    fun deleteAllByIdYear(year: Int)
+}
+
 interface ProviderRepository: JpaRepository<Provider, ProviderPK>{
     @Query(value = "delete from provider where year = ?1", nativeQuery = true)
     @Modifying
     fun deleteAllByIdYear(year: Int)
 }
 
-interface LearningAimRepository: JpaRepository<LearningAim, LearningAimPK>
+interface LearningAimRepository: JpaRepository<LearningAim, LearningAimPK> {
+    @Query(value = "select aim_reference from learning_aim where year = ?1", nativeQuery = true)
+    fun findAimReferencesByYear(year: Int): List<String>
+}
 
 interface SupplementaryDataRepository: JpaRepository<SupplementaryData, SupplementaryDataPK> {
     @Query("select * from " +
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import uk.gov.london.ilr.file.BulkLoader
+import uk.gov.london.ilr.file.Money
+
+const val PROVIDER_COLUMNS = "year, ukprn, provider_name"
+
+const val LEARNING_AIM_COLUMNS = "aim_reference, year, title"
+
+const val LEARNER_COLUMNS = "learner_reference_number, ukprn, year, unique_learner_number, date_of_birth, " +
+        "lldd_health_problem, ethnicity, gender, prior_attainment, postcode_prior_to_enrollment, return, " +
+        "provider_specified_learner_monitoring_a, provider_specified_learner_monitoring_b, family_name, given_name"
+
+const val LEARNING_DELIVERY_COLUMNS = "learner_reference_number, ukprn, aim_sequence_number, year, aim_reference, " +
+        "start_date, planned_end_date, actual_end_date, outcome, notional_nvq_level, tier_two_sector_subject_area, " +
+        "funding_model, completion_status, learner_employment_status, esm_type_benefit_status, return, " +
+        "funding_line_type, partner_ukprn, ldfam_type_funding_indicator, ldfam_type_ldm_a, ldfam_type_ldm_b, " +
+        "ldfam_type_ldm_c, ldfam_type_ldm_d, ldfam_type_ldm_e, ldfam_type_ldm_f, ldfam_type_dam_a, ldfam_type_dam_b, " +
+        "ldfam_type_dam_c, ldfam_type_dam_d, ldfam_type_dam_e, ldfam_type_dam_f, ldfam_community_learning_provision_type, " +
+        "ldfam_type_household_situation_a, ldfam_type_household_situation_b, local_authority_code, partner_ukprn_name, " +
+        "esm_type_employment_intensity, start_for_funding_purposes, tier_two_sector_subject_area_name"
+
+const val EARNING_PERIOD_COLUMNS = "learner_reference_number, ukprn, aim_sequence_number, year, month, " +
+        "on_programme_earned_cash, balancing_payment_earned_cash, aim_achievement_earned_cash, " +
+        "job_outcome_earned_cash, learning_support_earned_cash, return"
+
+private val EARNED_CASH_COLUMNS = listOf("on_programme_earned_cash", "balancing_payment_earned_cash",
+        "aim_achievement_earned_cash", "job_outcome_earned_cash", "learning_support_earned_cash")
+
+val EARNING_PROFILE_COLUMNS = "learner_reference_number, ukprn, aim_sequence_number, year, return, " +
+        EARNING_PERIOD_MONTHS.joinToString { month -> EARNED_CASH_COLUMNS.joinToString { "$it$month" } }
+
+/**
+ * Accumulates the rows created by an occupancy report import and writes them to the database through a
+ * BulkLoader, one load per table, instead of one JPA save per entity. Callers are expected to call flush() at the end of
+ * each commit window so that the buffered rows are written as part of that window's transaction.
+ *
+ * The writer does not de-duplicate keys, see OccupancyKeyRegistry. Rows are written to the table returned by
+ * tableName for each live table, which lets an import load into staging tables, see OccupancyStagingTables.
+ */
+class OccupancyBulkWriter(private val bulkLoader: BulkLoader, private val tableName: (String) -> String = { it }) {
+
+    private val providers = ArrayList<Provider>()
+    private val learningAims = ArrayList<LearningAim>()
+    private val learners = ArrayList<Learner>()
+    private val learningDeliveries = ArrayList<LearningDelivery>()
+    private val earningPeriods = ArrayList<EarningPeriod>()
+    private val earningProfiles = ArrayList<EarningProfile>()
+    private val learnerFingerprints = ArrayList<LearnerFingerprint>()
+    private val learningDeliveryFingerprints = ArrayList<LearningDeliveryFingerprint>()
+
+    fun add(provider: Provider) {
+        providers.add(provider)
+    }
+
+    fun add(learningAim: LearningAim) {
+        learningAims.add(learningAim)
+    }
+
+    fun add(learner: Learner) {
+        learners.add(learner)
+    }
+
+    fun add(learningDelivery: LearningDelivery) {
+        learningDeliveries.add(learningDelivery)
+    }
+
+    fun add(earningPeriod: EarningPeriod) {
+        earningPeriods.add(earningPeriod)
+    }
+
+    fun add(earningProfile: EarningProfile) {
+        earningProfiles.add(earningProfile)
+    }
+
+    fun add(fingerprint: LearnerFingerprint) {
+        learnerFingerprints.add(fingerprint)
+    }
+
+    fun add(fingerprint: LearningDeliveryFingerprint) {
+        learningDeliveryFingerprints.add(fingerprint)
+    }
+
+    /**
+     * Writes all buffered rows and clears the buffers. Must be called inside the transaction the rows belong to.
+     */
+    fun flush() {
+        load("provider", PROVIDER_COLUMNS, providers, ::providerValues)
+        load("learning_aim", LEARNING_AIM_COLUMNS, learningAims, ::learningAimValues)
+        load("learner", LEARNER_COLUMNS, learners, ::learnerValues)
+        load("learning_delivery", LEARNING_DELIVERY_COLUMNS, learningDeliveries, ::learningDeliveryValues)
+        load("earning_period", EARNING_PERIOD_COLUMNS, earningPeriods, ::earningPeriodValues)
+        load("earning_profile", EARNING_PROFILE_COLUMNS, earningProfiles, ::earningProfileValues)
+        load("learner_fingerprint", LEARNER_FINGERPRINT_COLUMNS, learnerFingerprints) { it.values() }
+        load("learning_delivery_fingerprint", LEARNING_DELIVERY_FINGERPRINT_COLUMNS, learningDeliveryFingerprints) { it.values() }
+    }
+
+    private fun <T> load(table: String, columns: String, rows: MutableList<T>, values: (T) -> Array<Any?>) {
+        bulkLoader.load(tableName(table), columns, rows, values)
+        rows.clear()
+    }
+
+}
+
+internal fun providerValues(p: Provider): Array<Any?> {
+    return arrayOf(p.id.year, p.id.ukprn, p.providerName)
+}
+
+internal fun learningAimValues(a: LearningAim): Array<Any?> {
+    return arrayOf(a.id.aimReference, a.id.year, a.title)
+}
+
+internal fun learnerValues(l: Learner): Array<Any?> {
+    return arrayOf(l.id.learnerReferenceNumber,
+            l.id.ukprn,
+            l.id.year,
+            l.uniqueLearnerNumber,
+            l.dateOfBirth,
+            l.llddHealthProblem,
+            l.ethnicity,
+            l.gender,
+            l.priorAttainment,
+            l.postcodePriorToEnrollment,
+            l.returnPeriod,
+            l.providerSpecifiedLearnerMonitoringA,
+            l.providerSpecifiedLearnerMonitoringB,
+            l.familyName,
+            l.givenName)
+}
+
+internal fun learningDeliveryValues(d: LearningDelivery): Array<Any?> {
+    return arrayOf(d.id.learnerReferenceNumber,
+            d.id.ukprn,
+            d.id.aimSequenceNumber,
+            d.id.year,
+            d.aimReference,
+            d.startDate,
+            d.plannedEndDate,
+            d.actualEndDate,
+            d.outcome,
+            d.notionalNvqLevel,
+            d.tierTwoSectorSubjectArea,
+            d.fundingModel,
+            d.completionStatus,
+            d.learnerEmploymentStatus,
+            d.esmTypeBenefitStatus,
+            d.returnPeriod,
+            d.fundingLineType,
+            d.partnerUkprn,
+            d.ldfamTypeFundingIndicator,
+            d.ldfamTypeLdmA,
+            d.ldfamTypeLdmB,
+            d.ldfamTypeLdmC,
+            d.ldfamTypeLdmD,
+            d.ldfamTypeLdmE,
+            d.ldfamTypeLdmF,
+            d.ldfamTypeDamA,
+            d.ldfamTypeDamB,
+            d.ldfamTypeDamC,
+            d.ldfamTypeDamD,
+            d.ldfamTypeDamE,
+            d.ldfamTypeDamF,
+            d.ldfamCommunityLearningProvisionType,
+            d.ldfamTypeHouseholdSituationA,
+            d.ldfamTypeHouseholdSituationB,
+            d.localAuthorityCode,
+            d.partnerUkprnName,
+            d.esmTypeEmploymentIntensity,
+            d.startForFundingPurposes,
+            d.tierTwoSectorSubjectAreaName)
+}
+
+internal fun earningPeriodValues(e: EarningPeriod): Array<Any?> {
+    return arrayOf(e.id.learnerReferenceNumber,
+            e.id.ukprn,
+            e.id.aimSequenceNumber,
+            e.id.year,
+            e.id.month,
+            Money.toBigDecimal(e.onProgrammeEarnedCash),
+            Money.toBigDecimal(e.balancingPaymentEarnedCash),
+            Money.toBigDecimal(e.aimAchievementEarnedCash),
+            Money.toBigDecimal(e.jobOutcomeEarnedCash),
+            Money.toBigDecimal(e.learningSupportEarnedCash),
+            e.returnPeriod)
+}
+
+internal fun earningProfileValues(e: EarningProfile): Array<Any?> {
+    return arrayOf<Any?>(e.id.learnerReferenceNumber,
+            e.id.ukprn,
+            e.id.aimSequenceNumber,
+            e.id.year,
+            e.returnPeriod) + earningProfileCash(e).map { Money.toBigDecimal(it) }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import uk.gov.london.ilr.file.CsvColumns
+import uk.gov.london.ilr.file.LRN
+import uk.gov.london.ilr.file.UKPRN
+import java.text.DateFormatSymbols
+import java.util.*
+
+const val ON_PROGRAMME_EARNED_CASH = 0
+const val BALANCING_PAYMENT_EARNED_CASH = 1
+const val AIM_ACHIEVEMENT_EARNED_CASH = 2
+const val JOB_OUTCOME_EARNED_CASH = 3
+const val LEARNING_SUPPORT_EARNED_CASH = 4
+
+/**
+ * Positions of the occupancy report columns in one file, resolved once from the header row so that rows can
+ * be decoded by index. Columns missing from the file, such as those only present in the newer report format,
+ * have an index of -1.
+ */
+class OccupancyColumns(private val columns: CsvColumns) {
+
+    private val resolved = ArrayList<Int>()
+
+    val learnerReferenceNumber = indexOf(LRN)
+    val ukprn = indexOf(UKPRN)
+    val returnPeriod = indexOf("Return")
+    val uniqueLearnerNumber = indexOf("Unique learner number")
+    val aimSequenceNumber = indexOf("Aim sequence number")
+    val aimReference = indexOf("Learning aim reference")
+
+    val providerName = indexOf("Provider name")
+    val learningAimTitle = indexOf("Learning aim title")
+
+    val dateOfBirth = indexOf("Date of birth")
+    val llddHealthProblem = indexOf("LLDD and health problem")
+    val ethnicity = indexOf("Ethnicity")
+    val priorAttainment = indexOf("Prior attainment")
+    val sex = indexOf("Sex")
+    val postcode = indexOf("Postcode prior to enrolment")
+    val learnerMonitoringA = indexOf("Provider specified learner monitoring (A)")
+    val learnerMonitoringB = indexOf("Provider specified learner monitoring (B)")
+    val familyName = indexOf("Family name")
+    val givenNames = indexOf("Given names")
+
+    val outcome = indexOf("Outcome")
+    val notionalNvqLevel = indexOf("Notional NVQ level")
+    val tierTwoSectorSubjectArea = indexOf("Tier 2 sector subject area")
+    val fundingModel = indexOf("Funding model")
+    val completionStatus = indexOf("Completion status")
+    val esmTypeBenefitStatus = indexOf("ESM Type - benefit status indicator")
+    val learnerEmploymentStatus = indexOf("Learner employment status")
+    val fundingLineType = indexOf("Funding line type")
+    val partnerUkprn = indexOf("Partner UKPRN")
+    val ldfamTypeFundingIndicator = indexOf("LDFAM type - full or co funding indicator")
+    val ldfamTypeLdmA = indexOf("LDFAM type - LDM (A)")
+    val ldfamTypeLdmB = indexOf("LDFAM type - LDM (B)")
+    val ldfamTypeLdmC = indexOf("LDFAM type - LDM (C)")
+    val ldfamTypeLdmD = indexOf("LDFAM type - LDM (D)")
+    val ldfamTypeLdmE = indexOf("LDFAM type - LDM (E)")
+    val ldfamTypeLdmF = indexOf("LDFAM type - LDM (F)")
+    val ldfamTypeDamA = indexOf("LDFAM type - DAM (A)")
+    val ldfamTypeDamB = indexOf("LDFAM type - DAM (B)")
+    val ldfamTypeDamC = indexOf("LDFAM type - DAM (C)")
+    val ldfamTypeDamD = indexOf("LDFAM type - DAM (D)")
+    val ldfamTypeDamE = indexOf("LDFAM type - DAM (E)")
+    val ldfamTypeDamF = indexOf("LDFAM type - DAM (F)")
+    val ldfamCommunityLearningProvisionType = indexOf("LDFAM type - Community Learning provision type")
+    val ldfamTypeHouseholdSituationA = indexOf("LDFAM type - household situation (A)")
+    val ldfamTypeHouseholdSituationB = indexOf("LDFAM type - household situation (B)")
+    val localAuthorityCode = indexOf("Local authority code")
+    val partnerUkprnName = indexOf("Partner UKPRN name")
+    val esmTypeEmploymentIntensity = indexOf("ESM type - employment intensity indicator")
+    val startForFundingPurposes = indexOf("Start for funding purposes")
+    val tierTwoSectorSubjectAreaName = indexOf("Tier 2 sector subject area name")
+    val learningStartDate = indexOf("Learning start date")
+    val learningPlannedEndDate = indexOf("Learning planned end date")
+    val learningActualEndDate = indexOf("Learning actual end date")
+
+    /**
+     * Earned cash columns per month of the report, January first, indexed by the *_EARNED_CASH constants.
+     */
+    val earnedCash: Array<IntArray> = DateFormatSymbols(Locale.ENGLISH).months.take(12).map { month ->
+        intArrayOf(
+                indexOf("$month on programme earned cash"),
+                indexOf("$month balancing payment earned cash"),
+                indexOf("$month aim achievement earned cash"),
+                indexOf("$month job outcome earned cash"),
+                indexOf("$month learning support earned cash"))
+    }.toTypedArray()
+
+    /**
+     * Positions of the columns above which the file has, the only cells an import needs to copy from each row.
+     */
+    val indexes: IntArray = resolved.filter { it >= 0 }.toIntArray()
+
+    private fun indexOf(name: String): Int {
+        val index = columns.indexOf(name)
+        resolved.add(index)
+        return index
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import java.math.BigDecimal
+import java.time.LocalDate
+
+const val LEARNER_FINGERPRINT_COLUMNS = "year, ukprn, learner_reference_number, fingerprint"
+
+const val LEARNING_DELIVERY_FINGERPRINT_COLUMNS = "year, ukprn, learner_reference_number, aim_sequence_number, fingerprint"
+
+/**
+ * Positions of the return column, which changes with every monthly return, so it is left out of the
+ * fingerprints. Rows which did not change keep the return in which they last changed.
+ */
+private val LEARNER_RETURN_INDEX = LEARNER_COLUMNS.split(", ").indexOf("return")
+private val LEARNING_DELIVERY_RETURN_INDEX = LEARNING_DELIVERY_COLUMNS.split(", ").indexOf("return")
+
+private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+private const val FNV_PRIME = 0x100000001b3L
+
+/**
+ * Fingerprint of the learner columns of an occupancy report row, stored per learner and year so that the next
+ * import of the year can tell which learners changed.
+ */
+class LearnerFingerprint(val id: LearnerPK, val fingerprint: Long) {
+
+    fun values(): Array<Any?> {
+        return arrayOf(id.year, id.ukprn, id.learnerReferenceNumber, fingerprint)
+    }
+
+}
+
+/**
+ * Fingerprint of a learning delivery together with its earning periods.
+ */
+class LearningDeliveryFingerprint(val id: LearningDeliveryPK, val fingerprint: Long) {
+
+    fun values(): Array<Any?> {
+        return arrayOf(id.year, id.ukprn, id.learnerReferenceNumber, id.aimSequenceNumber, fingerprint)
+    }
+
+}
+
+fun fingerprintOf(learner: Learner): LearnerFingerprint {
+    return LearnerFingerprint(learner.id, Fingerprint().add(learnerValues(learner), LEARNER_RETURN_INDEX).value())
+}
+
+/**
+ * The layout the earning periods are stored in is part of the fingerprint, so that the first import after the
+ * layout is changed moves every learning delivery over to the new layout.
+ */
+fun fingerprintOf(learningDelivery: LearningDelivery, earningPeriods: List<EarningPeriod>,
+                  earningLayout: EarningLayout = EarningLayout.PERIODS): LearningDeliveryFingerprint {
+    val fingerprint = Fingerprint().add(learningDeliveryValues(learningDelivery), LEARNING_DELIVERY_RETURN_INDEX)
+    if (earningLayout != EarningLayout.PERIODS) {
+        fingerprint.add(earningLayout.name)
+    }
+    for (earningPeriod in earningPeriods) {
+        fingerprint.add(earningPeriod.id.month)
+                .add(earningPeriod.onProgrammeEarnedCash)
+                .add(earningPeriod.balancingPaymentEarnedCash)
+                .add(earningPeriod.aimAchievementEarnedCash)
+                .add(earningPeriod.jobOutcomeEarnedCash)
+                .add(earningPeriod.learningSupportEarnedCash)
+    }
+    return LearningDeliveryFingerprint(learningDelivery.id, fingerprint.value())
+}
+
+/**
+ * 64 bit FNV-1a hash over a sequence of decoded column values. Each value is tagged with its type, so that
+ * for example a null, an empty string and a zero give different fingerprints.
+ */
+class Fingerprint {
+
+    private var hash = FNV_OFFSET_BASIS
+
+    /**
+     * Adds all values apart from the one at skipIndex.
+     */
+    fun add(values: Array<Any?>, skipIndex: Int = -1): Fingerprint {
+        for (i in values.indices) {
+            if (i != skipIndex) {
+                add(values[i])
+            }
+        }
+        return this
+    }
+
+    fun add(value: Any?): Fingerprint {
+        when (value) {
+            null -> mix(0)
+            is Int -> { mix(1); mix(value.toLong()) }
+            is Long -> { mix(2); mix(value) }
+            is String -> { mix(3); mix(value.length.toLong()); value.forEach { mix(it.toLong()) } }
+            is LocalDate -> { mix(4); mix(value.toEpochDay()) }
+            is BigDecimal -> { mix(5); mix(value.scale().toLong()); value.unscaledValue().toByteArray().forEach { mix(it.toLong()) } }
+            else -> { mix(6); value.toString().forEach { mix(it.toLong()) } }
+        }
+        return this
+    }
+
+    fun value(): Long {
+        return hash
+    }
+
+    private fun mix(value: Long) {
+        hash = (hash xor value) * FNV_PRIME
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+private const val MAX_PACKED_CHARS = 12
+private const val CHARS_PER_WORD = 6
+private const val BITS_PER_CHAR = 6
+private const val UKPRN_BITS = 27
+
+/**
+ * Import-scoped registry of the provider, learner and learning aim keys already written for one academic year.
+ *
+ * The academic year is fixed for the lifetime of the registry, so it is not part of the stored keys. Learner
+ * reference numbers and aim references made of letters, digits and spaces (up to 12 characters, which covers the
+ * ILR specification) are packed into two longs together with the UKPRN, so the registry holds no object per key.
+ * Anything that does not fit is kept in an ordinary hash set as a fallback.
+ */
+class OccupancyKeyRegistry(val academicYear: Int, expectedLearners: Int = 1 shl 16) {
+
+    private val providers = LongPairSet(1 shl 10)
+    private val learners = LongPairSet(expectedLearners)
+    private val learningAims = LongPairSet(1 shl 12)
+
+    private val unpackedLearners = HashSet<LearnerPK>()
+    private val unpackedLearningAims = HashSet<String>()
+
+    private var packedHi = 0L
+    private var packedLo = 0L
+
+    /**
+     * @return true if the provider was not registered before this call
+     */
+    fun registerProvider(ukprn: Int): Boolean {
+        return providers.add(ukprn.toLong(), 0L)
+    }
+
+    /**
+     * @return true if the learner was not registered before this call
+     */
+    fun registerLearner(ukprn: Int, learnerReferenceNumber: String): Boolean {
+        return if (pack(ukprn, learnerReferenceNumber)) {
+            learners.add(packedHi, packedLo)
+        }
+        else {
+            unpackedLearners.add(LearnerPK(learnerReferenceNumber, ukprn, academicYear))
+        }
+    }
+
+    /**
+     * @return true if the learning aim was not registered before this call
+     */
+    fun registerLearningAim(aimReference: String): Boolean {
+        return if (pack(0, aimReference)) {
+            learningAims.add(packedHi, packedLo)
+        }
+        else {
+            unpackedLearningAims.add(aimReference)
+        }
+    }
+
+    /**
+     * Packs the UKPRN and up to 12 characters into packedHi/packedLo. Every packed character is non-zero, so
+     * values of different lengths never collide.
+     */
+    private fun pack(ukprn: Int, value: String): Boolean {
+        if (ukprn < 0 || ukprn >= (1 shl UKPRN_BITS) || value.length > MAX_PACKED_CHARS) {
+            return false
+        }
+
+        var hi = ukprn.toLong()
+        var lo = 0L
+        for (i in value.indices) {
+            val code = charCode(value[i])
+            if (code == 0) {
+                return false
+            }
+            if (i < CHARS_PER_WORD) {
+                hi = hi or (code.toLong() shl (BITS_PER_CHAR * i + UKPRN_BITS))
+            }
+            else {
+                lo = lo or (code.toLong() shl (BITS_PER_CHAR * (i - CHARS_PER_WORD)))
+            }
+        }
+
+        packedHi = hi
+        packedLo = lo
+        return true
+    }
+
+    private fun charCode(c: Char): Int {
+        return when (c) {
+            in '0'..'9' -> c - '0' + 1
+            in 'A'..'Z' -> c - 'A' + 11
+            in 'a'..'z' -> c - 'a' + 37
+            ' ' -> 63
+            else -> 0
+        }
+    }
+
+}
+
+/**
+ * Open addressing hash set of 128 bit keys held as pairs of longs in primitive arrays.
+ */
+internal class LongPairSet(expectedSize: Int) {
+
+    private var his: LongArray
+    private var los: LongArray
+    private var used: BooleanArray
+    private var mask: Int
+    private var size = 0
+
+    init {
+        var capacity = 16
+        while (capacity < expectedSize * 2) {
+            capacity = capacity shl 1
+        }
+        his = LongArray(capacity)
+        los = LongArray(capacity)
+        used = BooleanArray(capacity)
+        mask = capacity - 1
+    }
+
+    /**
+     * @return true if the key was added, false if it was already present
+     */
+    fun add(hi: Long, lo: Long): Boolean {
+        var slot = slotFor(hi, lo)
+        while (used[slot]) {
+            if (his[slot] == hi && los[slot] == lo) {
+                return false
+            }
+            slot = (slot + 1) and mask
+        }
+
+        used[slot] = true
+        his[slot] = hi
+        los[slot] = lo
+        if (++size * 4 > (mask + 1) * 3) {
+            grow()
+        }
+        return true
+    }
+
+    private fun grow() {
+        val oldHis = his
+        val oldLos = los
+        val oldUsed = used
+        val capacity = (mask + 1) shl 1
+
+        his = LongArray(capacity)
+        los = LongArray(capacity)
+        used = BooleanArray(capacity)
+        mask = capacity - 1
+
+        for (i in oldUsed.indices) {
+            if (oldUsed[i]) {
+                var slot = slotFor(oldHis[i], oldLos[i])
+                while (used[slot]) {
+                    slot = (slot + 1) and mask
+                }
+                used[slot] = true
+                his[slot] = oldHis[i]
+                los[slot] = oldLos[i]
+            }
+        }
+    }
+
+    private fun slotFor(hi: Long, lo: Long): Int {
+        var h = hi * -0x61c8864680b583ebL + lo
+        h = (h xor (h ushr 33)) * -0xae502812aa7333L
+        h = h xor (h ushr 33)
+        return h.toInt() and mask
+    }
+
+}
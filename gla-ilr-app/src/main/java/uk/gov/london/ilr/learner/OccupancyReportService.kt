@@ -2,19 +2,27 @@ package uk.gov.london.ilr.learner
 
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Value
+import org.springframework.jdbc.core.JdbcTemplate
 import org.springframework.stereotype.Service
 import org.springframework.transaction.PlatformTransactionManager
 import org.springframework.transaction.TransactionDefinition
 import org.springframework.transaction.support.DefaultTransactionDefinition
+import org.springframework.transaction.support.TransactionTemplate
 import uk.gov.london.common.CSVFile
 import uk.gov.london.ilr.file.DataImport
 import uk.gov.london.ilr.file.DataImportService
+import uk.gov.london.ilr.file.BulkLoaderFactory
+import uk.gov.london.ilr.file.CsvColumns
+import uk.gov.london.ilr.file.CsvRow
+import uk.gov.london.ilr.file.ImportPhase
+import uk.gov.london.ilr.file.ImportPipelineFactory
+import uk.gov.london.ilr.file.ImportProgressTracker
 import uk.gov.london.ilr.file.LRN
 import uk.gov.london.ilr.file.UKPRN
+import uk.gov.london.ilr.file.rowReader
 import java.io.InputStream
 import java.text.DateFormatSymbols
 import java.time.LocalDate
-import java.time.format.DateTimeFormatter
 import java.util.*
 import javax.transaction.Transactional
 
@@ -26,6 +34,10 @@ class OccupancyReportService(val dataImportService: DataImportService,
                              val learnerDeliveryRepository: LearningDeliveryRepository,
                              val learningAimRepository: LearningAimRepository,
                              val earningPeriodRepository: EarningPeriodRepository,
+                             val jdbcTemplate: JdbcTemplate,
+                             val importPipelineFactory: ImportPipelineFactory,
+                             val bulkLoaderFactory: BulkLoaderFactory,
+                             val importProgressTracker: ImportProgressTracker,
                              val txManager: PlatformTransactionManager) {
 
     internal var log = LoggerFactory.getLogger(javaClass)
@@ -33,46 +45,137 @@ class OccupancyReportService(val dataImportService: DataImportService,
     @Value("\${ilr.occupancy-report.format-change-year}")
     var reportFormatChangeYear: Int = 2020
 
+    /**
+     * When set, an import only rewrites the learners and learning deliveries which changed since the previous
+     * import of the year. Has no effect on PostgreSQL, where the year's partitions are swapped without rewriting
+     * any rows.
+     */
+    @Value("\${ilr.occupancy-report.incremental-import}")
+    var incrementalImport: Boolean = true
+
+    /**
+     * When set, months in which nothing was earned are not stored in earning_period, see denseEarningPeriods().
+     */
+    @Value("\${ilr.occupancy-report.sparse-earning-periods}")
+    var sparseEarningPeriods: Boolean = true
+
+    /**
+     * Whether earning periods are stored as a row per month or as one earning profile per learning delivery.
+     */
+    @Value("\${ilr.occupancy-report.earning-layout}")
+    var earningLayout: EarningLayout = EarningLayout.PERIODS
+
     val months : Array<String> = DateFormatSymbols(Locale.ENGLISH).months
 
+    /**
+     * The staging tables are created and dropped outside the caller's transaction, so that the batches written in
+     * their own transactions can see them and a rollback of the caller does not undo the DDL on PostgreSQL.
+     */
+    private val newTransaction = TransactionTemplate(txManager).also {
+        it.propagationBehavior = TransactionDefinition.PROPAGATION_REQUIRES_NEW
+    }
+
     fun createNewOccupancyRecords(dataImport: DataImport, inputStream: InputStream) {
         createNewOccupancyRecords(dataImport, inputStream, dataImport.academicYear!!)
     }
 
-    fun createNewOccupancyRecords(dataImport: DataImport, inputStream: InputStream, academicYear: Int) {
+    /**
+     * Carries on with an import which failed part way through, from the last batch it committed. The input
+     * stream must be the same file the import was started with.
+     */
+    fun resumeOccupancyRecords(dataImport: DataImport, inputStream: InputStream) {
+        createNewOccupancyRecords(dataImport, inputStream, dataImport.academicYear!!, dataImport.rowsProcessed ?: 0)
+    }
+
+    /**
+     * The rows are written to staging tables in batches of 1000, each committed together with the number of
+     * rows processed so far. If the import fails, the staging tables are kept so that it can be resumed from
+     * that number of rows, see resumeOccupancyRecords; they are dropped once the import has been published.
+     */
+    fun createNewOccupancyRecords(dataImport: DataImport, inputStream: InputStream, academicYear: Int, resumeFrom: Int = 0) {
+        val progress = importProgressTracker.progressOf(dataImport)
         val csvFile = CSVFile(inputStream)
 
         validateOccupancyFields(academicYear, csvFile)
 
-        cleanOccupancyDataForYear(academicYear)
+        val csvColumns = CsvColumns(csvFile.headers)
+        val columns = OccupancyColumns(csvColumns)
+
+        val stagingTables = OccupancyStagingTables(jdbcTemplate, dataImport.id!!, bulkLoaderFactory.isPostgres())
+        val keyRegistry = createKeyRegistry(academicYear)
+        progress.phase(ImportPhase.CLEAN)
+        if (resumeFrom > 0) {
+            log.debug("Resuming import ${dataImport.id} after row $resumeFrom")
+            stagingTables.registerStagedKeys(keyRegistry)
+            skipRows(csvFile, resumeFrom)
+            progress.startFrom(resumeFrom.toLong())
+        }
+        else {
+            newTransaction.execute { stagingTables.create(academicYear) }
+        }
 
+        val bulkWriter = OccupancyBulkWriter(bulkLoaderFactory.newLoader(), stagingTables::nameOf)
         val def = DefaultTransactionDefinition()
         def.propagationBehavior = TransactionDefinition.PROPAGATION_REQUIRES_NEW
         var status = txManager.getTransaction(def)
         try {
-            var loopCount = 0
-            while (csvFile.nextRow()) {
-                processNewOccupancyRecord(csvFile, academicYear)
-
-                if (++loopCount % 1000 == 0) {
-                    log.debug("processsed: $loopCount")
-                    dataImport.rowsProcessed = loopCount
-                    dataImportService.updateDataImportRecord(dataImport)
-                    txManager.commit(status)
-                    status = txManager.getTransaction(def)
-
+            progress.phase(ImportPhase.LOAD)
+            var loopCount = resumeFrom
+            importPipelineFactory.newPipeline().run(rowReader(csvFile, csvColumns, columns.indexes, resumeFrom), { row -> mapOccupancyRecord(row, columns, academicYear) }, { records ->
+                for (record in records) {
+                    writeOccupancyRecord(record, bulkWriter, keyRegistry)
+
+                    if (++loopCount % 1000 == 0) {
+                        log.debug("processsed: $loopCount")
+                        bulkWriter.flush()
+                        dataImport.rowsProcessed = loopCount
+                        dataImportService.updateDataImportRecord(dataImport)
+                        txManager.commit(status)
+                        status = txManager.getTransaction(def)
+                    }
                 }
-            }
+                progress.addRows(records.size)
+            })
             log.debug("finished processing all rows: $loopCount")
-            dataImport.rowsProcessed
+            bulkWriter.flush()
+            dataImport.rowsProcessed = loopCount
             dataImportService.updateDataImportRecord(dataImport)
             txManager.commit(status)
+
+            progress.phase(ImportPhase.FINALISE)
+            newTransaction.execute { stagingTables.addKeys() }
+            status = txManager.getTransaction(def)
+            if (incrementalImport && !stagingTables.partitioned && stagingTables.hasFingerprints(academicYear)) {
+                stagingTables.swapInChanges(academicYear)
+            }
+            else {
+                stagingTables.swapIn(academicYear)
+            }
+            txManager.commit(status)
+            log.debug("Replaced occupancy data for year: $academicYear")
         } catch ( ex: Exception) {
             log.error("Failed due to : $ex.localizedMessage")
-            txManager.rollback(status)
-            cleanOccupancyDataForYear(academicYear)
+            if (!status.isCompleted) {
+                txManager.rollback(status)
+            }
             throw ex
         }
+        newTransaction.execute { stagingTables.drop() }
+    }
+
+    /**
+     * Drops what a failed import left behind for a resume that is not going to happen.
+     */
+    fun discardResumableImport(dataImport: DataImport) {
+        newTransaction.execute { OccupancyStagingTables(jdbcTemplate, dataImport.id!!, bulkLoaderFactory.isPostgres()).drop() }
+    }
+
+    private fun skipRows(csvFile: CSVFile, rows: Int) {
+        for (i in 1..rows) {
+            if (!csvFile.nextRow()) {
+                break
+            }
+        }
     }
 
     private fun validateOccupancyFields(academicYear: Int, csvFile: CSVFile) {
@@ -102,198 +205,209 @@ class OccupancyReportService(val dataImportService: DataImportService,
         validateColumnHeader(expectedColumns, actualColumns, false)
     }
 
-    private fun cleanOccupancyDataForYear(year: Int) {
-        log.debug("Removing occupancy data for year: $year")
-        val def = DefaultTransactionDefinition()
-        def.propagationBehavior = TransactionDefinition.PROPAGATION_REQUIRES_NEW
-        val status = txManager.getTransaction(def)
-        try {
-            providerRepository.deleteAllByIdYear(year)
-            learnerRepository.deleteAllByIdYear(year)
-            learnerDeliveryRepository.deleteAllByIdYear(year)
-            earningPeriodRepository.deleteAllByIdYear(year)
-            txManager.commit(status)
-            log.debug("Successfully removed occupancy data for year: $year")
-        } catch ( ex: Exception) {
-            log.error( "Failed to remove occupancy data for : $year $ex.localizedMessage")
-            throw ex
+    /**
+     * Provider and learner rows are written to empty staging tables, so only learning aims, which are kept
+     * between imports in the live table, need to be loaded up front.
+     */
+    private fun createKeyRegistry(academicYear: Int): OccupancyKeyRegistry {
+        val keyRegistry = OccupancyKeyRegistry(academicYear)
+        for (aimReference in learningAimRepository.findAimReferencesByYear(academicYear)) {
+            keyRegistry.registerLearningAim(aimReference)
         }
+        return keyRegistry
     }
 
-    private fun processNewOccupancyRecord(csvRow: CSVFile, academicYear: Int) {
-        val learnerReferenceNumber = csvRow.getString(LRN)
+    /**
+     * Builds the entities for one row. Runs on the import pipeline's worker threads, so it must not touch the
+     * database or any state shared between rows.
+     */
+    private fun mapOccupancyRecord(csvRow: CsvRow, columns: OccupancyColumns, academicYear: Int): OccupancyRecord {
+        val learnerReferenceNumber = csvRow.getString(columns.learnerReferenceNumber)
                 ?: throw RuntimeException("$LRN must be supplied for all rows")
-        val ukprn = csvRow.getIntegerOrNull(UKPRN)
+        val ukprn = csvRow.getIntegerOrNull(columns.ukprn)
                 ?: throw RuntimeException("$UKPRN must be supplied for row with Learner Reference Number: $learnerReferenceNumber")
-        val returnPeriod = csvRow.getIntegerOrNull("Return")
+        val returnPeriod = csvRow.getIntegerOrNull(columns.returnPeriod)
                 ?: throw RuntimeException("Return must be supplied for row with Learner Reference Number: $learnerReferenceNumber")
-        val ulnString = csvRow.getString("Unique learner number")
+        val ulnString = csvRow.getString(columns.uniqueLearnerNumber)
                 ?: throw RuntimeException("Unique learner number must be supplied for row with Learner Reference Number: $learnerReferenceNumber")
-        val aimSequenceNumber = csvRow.getIntegerOrNull("Aim sequence number")
+        val aimSequenceNumber = csvRow.getIntegerOrNull(columns.aimSequenceNumber)
                 ?: throw RuntimeException("Aim sequence number must be supplied for row with Learner Reference Number: $learnerReferenceNumber")
-        val aimReference = csvRow.getString("Learning aim reference")
+        val aimReference = csvRow.getString(columns.aimReference)
                 ?: throw RuntimeException("Learning aim reference must be supplied for row with Learner Reference Number: $learnerReferenceNumber")
 
         val uln = ulnString.toLong()
 
-        createProvider(csvRow, academicYear, ukprn)
+        val learner = createLearner(csvRow, columns, learnerReferenceNumber, ukprn, academicYear, uln, returnPeriod)
+        val learningDelivery = createLearnerDelivery(csvRow, columns, ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, returnPeriod)
+        val earningPeriods = createEarningPeriods(csvRow, columns, ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, returnPeriod)
+
+        return OccupancyRecord(
+                createProvider(csvRow, columns, academicYear, ukprn),
+                learner,
+                learningDelivery,
+                earningPeriods,
+                if (earningLayout == EarningLayout.PROFILE) earningProfileOf(learningDelivery.id, earningPeriods, returnPeriod) else null,
+                createLearningAim(csvRow, columns, aimReference, academicYear),
+                fingerprintOf(learner),
+                fingerprintOf(learningDelivery, earningPeriods, earningLayout))
+    }
 
-        createLearner(csvRow, learnerReferenceNumber, ukprn, academicYear, uln, returnPeriod)
+    private fun writeOccupancyRecord(record: OccupancyRecord, bulkWriter: OccupancyBulkWriter, keyRegistry: OccupancyKeyRegistry) {
+        if (keyRegistry.registerProvider(record.provider.id.ukprn)) {
+            bulkWriter.add(record.provider)
+        }
 
-        createLearnerDelivery(csvRow, ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, returnPeriod)
+        if (keyRegistry.registerLearner(record.learner.id.ukprn, record.learner.id.learnerReferenceNumber)) {
+            bulkWriter.add(record.learner)
+            bulkWriter.add(record.learnerFingerprint)
+        }
 
-        createEarningPeriods(csvRow, ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, returnPeriod)
+        bulkWriter.add(record.learningDelivery)
+        bulkWriter.add(record.learningDeliveryFingerprint)
 
-        createLearningAim(csvRow,aimReference, academicYear)
-    }
+        if (record.earningProfile != null) {
+            bulkWriter.add(record.earningProfile)
+        }
+        else {
+            for (earningPeriod in record.earningPeriods) {
+                bulkWriter.add(earningPeriod)
+            }
+        }
 
-    private fun createProvider(csvRow: CSVFile,  academicYear: Int, ukprn: Int) {
-        val id = ProviderPK(academicYear,ukprn)
-        if (!providerRepository.existsById(id)) {
-            val providerName = csvRow.getStringIfPresent("Provider name")
-            providerRepository.save(Provider(id, providerName)
-            )
+        if (keyRegistry.registerLearningAim(record.learningAim.id.aimReference)) {
+            bulkWriter.add(record.learningAim)
         }
     }
 
-    private fun createLearningAim(csvRow: CSVFile,aimReference: String,  academicYear: Int) {
-        val id = LearningAimPK(aimReference, academicYear)
-        if (!learningAimRepository.existsById(id)) {
-            val title = csvRow.getString("Learning aim title")
-            learningAimRepository.save(LearningAim(id, title)
-            )
-        }
+    private fun createProvider(csvRow: CsvRow, columns: OccupancyColumns, academicYear: Int, ukprn: Int): Provider {
+        val providerName = csvRow.getString(columns.providerName)
+        return Provider(ProviderPK(academicYear, ukprn), providerName)
+    }
+
+    private fun createLearningAim(csvRow: CsvRow, columns: OccupancyColumns, aimReference: String, academicYear: Int): LearningAim {
+        val title = csvRow.getString(columns.learningAimTitle)
+        return LearningAim(LearningAimPK(aimReference, academicYear), title!!)
     }
 
-    private fun createLearner(csvRow: CSVFile, learnerReferenceNumber: String, ukprn: Int, academicYear: Int, uln: Long, returnPeriod: Int) {
+    private fun createLearner(csvRow: CsvRow, columns: OccupancyColumns, learnerReferenceNumber: String, ukprn: Int, academicYear: Int, uln: Long, returnPeriod: Int): Learner {
         val id = LearnerPK(learnerReferenceNumber, ukprn, academicYear)
-        if (!learnerRepository.existsById(id)) {
-            val dateOfBirth: LocalDate? = getDateFromField(csvRow, "Date of birth")
-            val lldd = csvRow.getInteger("LLDD and health problem")
-            val ethnicity = csvRow.getInteger("Ethnicity")
-            val priorAttainment = csvRow.getIntegerOrNull("Prior attainment")
-            val gender = csvRow.getString("Sex")
-            val postcode = csvRow.getString("Postcode prior to enrolment")
-            val monA = csvRow.getString("Provider specified learner monitoring (A)")
-            val monB = csvRow.getString("Provider specified learner monitoring (B)")
-            val familyName = csvRow.getStringIfPresent("Family name")
-            val givenName = csvRow.getStringIfPresent("Given names")
-            learnerRepository.save(
-                    Learner(id,
-                            uln,
-                            dateOfBirth,
-                            lldd,
-                            ethnicity,
-                            gender,
-                            priorAttainment,
-                            postcode,
-                            returnPeriod,
-                            monA,
-                            monB,
-                            familyName,
-                            givenName
-                    )
-            )
-        }
+        val dateOfBirth: LocalDate? = csvRow.getDayMonthYearDate(columns.dateOfBirth)
+        val lldd = csvRow.getInteger(columns.llddHealthProblem)
+        val ethnicity = csvRow.getInteger(columns.ethnicity)
+        val priorAttainment = csvRow.getIntegerOrNull(columns.priorAttainment)
+        val gender = csvRow.getString(columns.sex)
+        val postcode = csvRow.getString(columns.postcode)
+        val monA = csvRow.getString(columns.learnerMonitoringA)
+        val monB = csvRow.getString(columns.learnerMonitoringB)
+        val familyName = csvRow.getString(columns.familyName)
+        val givenName = csvRow.getString(columns.givenNames)
+        return Learner(id,
+                uln,
+                dateOfBirth,
+                lldd,
+                ethnicity,
+                gender,
+                priorAttainment,
+                postcode,
+                returnPeriod,
+                monA,
+                monB,
+                familyName,
+                givenName
+        )
     }
 
-    private fun createLearnerDelivery(csvRow: CSVFile, ukprn: Int, learnerReferenceNumber: String,  aimSequenceNumber: Int, academicYear: Int, returnPeriod: Int) {
-        val aimReference = csvRow.getString("Learning aim reference")
-        val outcome = csvRow.getIntegerOrNull("Outcome")
-        val nvq = csvRow.getString("Notional NVQ level")
-        val tier2 = csvRow.getString("Tier 2 sector subject area")
-        val funding = csvRow.getIntegerOrNull("Funding model")
-        val completion = csvRow.getIntegerOrNull("Completion status")
-        val esm = csvRow.getIntegerOrNull("ESM Type - benefit status indicator")
-        val empStatus = csvRow.getIntegerOrNull("Learner employment status")
-        val fundingLineType = csvRow.getString("Funding line type")
-        val partnerUkprn = csvRow.getIntegerOrNull("Partner UKPRN")
-        val ldfamTypeFundingIndicator = csvRow.getIntegerOrNull("LDFAM type - full or co funding indicator")
-        val ldfamTypeLdmA = csvRow.getIntegerOrNull("LDFAM type - LDM (A)")
-        val ldfamTypeLdmB = csvRow.getIntegerOrNull("LDFAM type - LDM (B)")
-        val ldfamTypeLdmC = csvRow.getIntegerOrNull("LDFAM type - LDM (C)")
-        val ldfamTypeLdmD = csvRow.getIntegerOrNull("LDFAM type - LDM (D)")
-        val ldfamTypeLdmE = csvRow.getIntegerOrNull("LDFAM type - LDM (E)")
-        val ldfamTypeLdmF = csvRow.getIntegerOrNull("LDFAM type - LDM (F)")
-        val ldfamTypeDamA = csvRow.getIntegerOrNull("LDFAM type - DAM (A)")
-        val ldfamTypeDamB = csvRow.getIntegerOrNull("LDFAM type - DAM (B)")
-        val ldfamTypeDamC = csvRow.getIntegerOrNull("LDFAM type - DAM (C)")
-        val ldfamTypeDamD = csvRow.getIntegerOrNull("LDFAM type - DAM (D)")
-        val ldfamTypeDamE = csvRow.getStringIfPresent("LDFAM type - DAM (E)")
-        val ldfamTypeDamF = csvRow.getStringIfPresent("LDFAM type - DAM (F)")
-        val ldfamCommunityLearningProvisionType = csvRow.getIntegerOrNull("LDFAM type - Community Learning provision type")
-        val ldfamTypeHouseholdSituationA = csvRow.getStringIfPresent("LDFAM type - household situation (A)")
-        val ldfamTypeHouseholdSituationB = csvRow.getStringIfPresent("LDFAM type - household situation (B)")
-        val localAuthorityCode = csvRow.getStringIfPresent("Local authority code")
-        val partnerUkprnName = csvRow.getStringIfPresent("Partner UKPRN name")
-        val esmTypeEmploymentIntensity = csvRow.getIntegerIfPresent("ESM type - employment intensity indicator")
-        val startForFundingPurposes = csvRow.getIntegerIfPresent("Start for funding purposes")
-        val tierTwoSectorSubjectAreaName = csvRow.getStringIfPresent("Tier 2 sector subject area name")
-
-        learnerDeliveryRepository.save(
-                LearningDelivery(LearningDeliveryPK(ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear),
-                        aimReference,
-                        getDateFromField(csvRow, "Learning start date"),
-                        getDateFromField(csvRow, "Learning planned end date"),
-                        getDateFromField(csvRow, "Learning actual end date"),
-                        outcome,
-                        nvq,
-                        tier2,
-                        funding,
-                        completion,
-                        empStatus,
-                        esm,
-                        returnPeriod,
-                        fundingLineType,
-                        partnerUkprn,
-                        ldfamTypeFundingIndicator,
-                        ldfamTypeLdmA,
-                        ldfamTypeLdmB,
-                        ldfamTypeLdmC,
-                        ldfamTypeLdmD,
-                        ldfamTypeLdmE,
-                        ldfamTypeLdmF,
-                        ldfamTypeDamA,
-                        ldfamTypeDamB,
-                        ldfamTypeDamC,
-                        ldfamTypeDamD,
-                        ldfamTypeDamE,
-                        ldfamTypeDamF,
-                        ldfamCommunityLearningProvisionType,
-                        ldfamTypeHouseholdSituationA,
-                        ldfamTypeHouseholdSituationB,
-                        localAuthorityCode,
-                        partnerUkprnName,
-                        esmTypeEmploymentIntensity,
-                        startForFundingPurposes,
-                        tierTwoSectorSubjectAreaName
-                )
+    private fun createLearnerDelivery(csvRow: CsvRow, columns: OccupancyColumns, ukprn: Int, learnerReferenceNumber: String,  aimSequenceNumber: Int, academicYear: Int, returnPeriod: Int): LearningDelivery {
+        val aimReference = csvRow.getString(columns.aimReference)
+        val outcome = csvRow.getIntegerOrNull(columns.outcome)
+        val nvq = csvRow.getString(columns.notionalNvqLevel)
+        val tier2 = csvRow.getString(columns.tierTwoSectorSubjectArea)
+        val funding = csvRow.getIntegerOrNull(columns.fundingModel)
+        val completion = csvRow.getIntegerOrNull(columns.completionStatus)
+        val esm = csvRow.getIntegerOrNull(columns.esmTypeBenefitStatus)
+        val empStatus = csvRow.getIntegerOrNull(columns.learnerEmploymentStatus)
+        val fundingLineType = csvRow.getString(columns.fundingLineType)
+        val partnerUkprn = csvRow.getIntegerOrNull(columns.partnerUkprn)
+        val ldfamTypeFundingIndicator = csvRow.getIntegerOrNull(columns.ldfamTypeFundingIndicator)
+        val ldfamTypeLdmA = csvRow.getIntegerOrNull(columns.ldfamTypeLdmA)
+        val ldfamTypeLdmB = csvRow.getIntegerOrNull(columns.ldfamTypeLdmB)
+        val ldfamTypeLdmC = csvRow.getIntegerOrNull(columns.ldfamTypeLdmC)
+        val ldfamTypeLdmD = csvRow.getIntegerOrNull(columns.ldfamTypeLdmD)
+        val ldfamTypeLdmE = csvRow.getIntegerOrNull(columns.ldfamTypeLdmE)
+        val ldfamTypeLdmF = csvRow.getIntegerOrNull(columns.ldfamTypeLdmF)
+        val ldfamTypeDamA = csvRow.getIntegerOrNull(columns.ldfamTypeDamA)
+        val ldfamTypeDamB = csvRow.getIntegerOrNull(columns.ldfamTypeDamB)
+        val ldfamTypeDamC = csvRow.getIntegerOrNull(columns.ldfamTypeDamC)
+        val ldfamTypeDamD = csvRow.getIntegerOrNull(columns.ldfamTypeDamD)
+        val ldfamTypeDamE = csvRow.getString(columns.ldfamTypeDamE)
+        val ldfamTypeDamF = csvRow.getString(columns.ldfamTypeDamF)
+        val ldfamCommunityLearningProvisionType = csvRow.getIntegerOrNull(columns.ldfamCommunityLearningProvisionType)
+        val ldfamTypeHouseholdSituationA = csvRow.getString(columns.ldfamTypeHouseholdSituationA)
+        val ldfamTypeHouseholdSituationB = csvRow.getString(columns.ldfamTypeHouseholdSituationB)
+        val localAuthorityCode = csvRow.getString(columns.localAuthorityCode)
+        val partnerUkprnName = csvRow.getString(columns.partnerUkprnName)
+        val esmTypeEmploymentIntensity = csvRow.getIntegerOrNull(columns.esmTypeEmploymentIntensity)
+        val startForFundingPurposes = csvRow.getIntegerOrNull(columns.startForFundingPurposes)
+        val tierTwoSectorSubjectAreaName = csvRow.getString(columns.tierTwoSectorSubjectAreaName)
+
+        return LearningDelivery(LearningDeliveryPK(ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear),
+                aimReference,
+                csvRow.getDayMonthYearDate(columns.learningStartDate),
+                csvRow.getDayMonthYearDate(columns.learningPlannedEndDate),
+                csvRow.getDayMonthYearDate(columns.learningActualEndDate),
+                outcome,
+                nvq,
+                tier2,
+                funding,
+                completion,
+                empStatus,
+                esm,
+                returnPeriod,
+                fundingLineType,
+                partnerUkprn,
+                ldfamTypeFundingIndicator,
+                ldfamTypeLdmA,
+                ldfamTypeLdmB,
+                ldfamTypeLdmC,
+                ldfamTypeLdmD,
+                ldfamTypeLdmE,
+                ldfamTypeLdmF,
+                ldfamTypeDamA,
+                ldfamTypeDamB,
+                ldfamTypeDamC,
+                ldfamTypeDamD,
+                ldfamTypeDamE,
+                ldfamTypeDamF,
+                ldfamCommunityLearningProvisionType,
+                ldfamTypeHouseholdSituationA,
+                ldfamTypeHouseholdSituationB,
+                localAuthorityCode,
+                partnerUkprnName,
+                esmTypeEmploymentIntensity,
+                startForFundingPurposes,
+                tierTwoSectorSubjectAreaName
         )
     }
 
-    private fun createEarningPeriods(csvRow: CSVFile, ukprn: Int, learnerReferenceNumber: String, aimSequenceNumber: Int, academicYear: Int, returnPeriod: Int) {
+    private fun createEarningPeriods(csvRow: CsvRow, columns: OccupancyColumns, ukprn: Int, learnerReferenceNumber: String, aimSequenceNumber: Int, academicYear: Int, returnPeriod: Int): List<EarningPeriod> {
+        val earningPeriods = ArrayList<EarningPeriod>(12)
         for (i in 0..11) {
-            val monthString = months[i] + " "
+            val earnedCash = columns.earnedCash[i]
             val actual = if (i < 7) i + 13 % 7 else i - 6
 
-            earningPeriodRepository.save(EarningPeriod(EarningPeriodPK(ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, actual),
-                    csvRow.getCurrencyValue(monthString + "on programme earned cash"),
-                    csvRow.getCurrencyValue(monthString + "balancing payment earned cash"),
-                    csvRow.getCurrencyValue(monthString + "aim achievement earned cash"),
-                    csvRow.getCurrencyValue(monthString + "job outcome earned cash"),
-                    csvRow.getCurrencyValue(monthString + "learning support earned cash"),
-                    returnPeriod))
+            val earningPeriod = EarningPeriod(EarningPeriodPK(ukprn, learnerReferenceNumber, aimSequenceNumber, academicYear, actual),
+                    csvRow.getPence(earnedCash[ON_PROGRAMME_EARNED_CASH]),
+                    csvRow.getPence(earnedCash[BALANCING_PAYMENT_EARNED_CASH]),
+                    csvRow.getPence(earnedCash[AIM_ACHIEVEMENT_EARNED_CASH]),
+                    csvRow.getPence(earnedCash[JOB_OUTCOME_EARNED_CASH]),
+                    csvRow.getPence(earnedCash[LEARNING_SUPPORT_EARNED_CASH]),
+                    returnPeriod)
 
+            if (!sparseEarningPeriods || !isEmpty(earningPeriod)) {
+                earningPeriods.add(earningPeriod)
+            }
         }
-    }
-
-    private fun getDateFromField(csvRow: CSVFile, dateString: String): LocalDate? {
-        val dateOfBirthString = csvRow.getString(dateString)
-        var dateOfBirth: LocalDate? = null
-        if (dateOfBirthString != null && dateOfBirthString.isNotBlank()) {
-            dateOfBirth = LocalDate.parse(dateOfBirthString, DateTimeFormatter.ofPattern("d/M/yyyy"))
-        }
-        return dateOfBirth
+        return earningPeriods
     }
 
     fun validateColumnHeader(expectedColumnHeader:Set<String>, csvColumnHeader:Set<String>, listAcceptableColumn:Boolean){
@@ -316,3 +430,15 @@ class OccupancyReportService(val dataImportService: DataImportService,
     }
 
 }
+
+/**
+ * Entities built from a single occupancy report row.
+ */
+class OccupancyRecord(val provider: Provider,
+                      val learner: Learner,
+                      val learningDelivery: LearningDelivery,
+                      val earningPeriods: List<EarningPeriod>,
+                      val earningProfile: EarningProfile?,
+                      val learningAim: LearningAim,
+                      val learnerFingerprint: LearnerFingerprint,
+                      val learningDeliveryFingerprint: LearningDeliveryFingerprint)
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import org.slf4j.LoggerFactory
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.core.RowCallbackHandler
+
+/**
+ * Per-import copies of the occupancy tables which are replaced wholesale for an academic year. An import
+ * writes into these tables and, once every row has been loaded, swapIn() replaces the live rows for the year
+ * in one transaction, so readers see either the previous complete dataset or the new one.
+ *
+ * On PostgreSQL the live tables are list partitioned by year, and swapIn() replaces the year's partitions with
+ * the staging tables, so publishing an import neither deletes nor copies any rows. Elsewhere, such as the H2
+ * profile, the live rows for the year are deleted and the staged rows copied in.
+ *
+ * Learning aims are shared between years and imports only ever add to them, so they are written straight to
+ * the live table.
+ *
+ * The learner and learning delivery fingerprints are staged with the data. When the previous import of the
+ * year left fingerprints behind, swapInChanges() only touches the learners and deliveries whose fingerprint
+ * differs, instead of rewriting the whole year. Partitioned tables have no need for it, as swapIn() rewrites no
+ * rows at all.
+ */
+class OccupancyStagingTables(private val jdbcTemplate: JdbcTemplate, dataImportId: Int, val partitioned: Boolean) {
+
+    internal var log = LoggerFactory.getLogger(javaClass)
+
+    private val suffix = "_stg_$dataImportId"
+
+    /**
+     * The columns, primary key and other indexes of a live table, the keys in the order the live table has them
+     * so that a staging table's indexes can become the partition's when it is attached.
+     */
+    private class StagedTable(val columns: String, val primaryKey: List<String>, val indexes: List<List<String>> = listOf())
+
+    /**
+     * Live tables in the order their rows are inserted during the swap.
+     */
+    private val stagedTables = linkedMapOf(
+            "provider" to StagedTable(PROVIDER_COLUMNS, listOf("year", "ukprn")),
+            "learner" to StagedTable(LEARNER_COLUMNS, listOf("learner_reference_number", "ukprn", "year")),
+            "learning_delivery" to StagedTable(LEARNING_DELIVERY_COLUMNS, listOf("learner_reference_number", "ukprn", "aim_sequence_number", "year"),
+                    listOf(listOf("ukprn", "learner_reference_number"))),
+            "earning_period" to StagedTable(EARNING_PERIOD_COLUMNS, listOf("learner_reference_number", "ukprn", "aim_sequence_number", "year", "month")),
+            "earning_profile" to StagedTable(EARNING_PROFILE_COLUMNS, listOf("learner_reference_number", "ukprn", "aim_sequence_number", "year")),
+            "learner_fingerprint" to StagedTable(LEARNER_FINGERPRINT_COLUMNS, listOf("year", "ukprn", "learner_reference_number")),
+            "learning_delivery_fingerprint" to StagedTable(LEARNING_DELIVERY_FINGERPRINT_COLUMNS, listOf("year", "ukprn", "learner_reference_number", "aim_sequence_number")))
+
+    private val fingerprintTables = setOf("learner_fingerprint", "learning_delivery_fingerprint")
+
+    private val learnerKey = listOf("ukprn", "learner_reference_number")
+
+    private val learningDeliveryKey = listOf("ukprn", "learner_reference_number", "aim_sequence_number")
+
+    /**
+     * Keys of the learners and learning deliveries which differ between the live and the staged data.
+     */
+    private val changedLearners = "learner_changed$suffix"
+
+    private val changedLearningDeliveries = "learning_delivery_changed$suffix"
+
+    /**
+     * @return the table an import should write the rows of the given live table to
+     */
+    fun nameOf(table: String): String {
+        return if (stagedTables.containsKey(table)) table + suffix else table
+    }
+
+    /**
+     * Creates empty staging tables, replacing any left behind by an earlier attempt of the same import. When the
+     * live tables are partitioned, the staging tables have their NOT NULL constraints and a check on the year,
+     * which spares attaching them as partitions a scan of their rows.
+     */
+    fun create(year: Int) {
+        drop()
+        for (table in stagedTables.keys) {
+            if (partitioned) {
+                jdbcTemplate.execute("create table ${nameOf(table)} (like $table including defaults)")
+                jdbcTemplate.execute("alter table ${nameOf(table)} add constraint ${nameOf(table)}_year check (year = $year)")
+            }
+            else {
+                jdbcTemplate.execute("create table ${nameOf(table)} as select * from $table where 1 = 0")
+            }
+        }
+        jdbcTemplate.execute("create table $changedLearners as select ${learnerKey.joinToString()} from learner where 1 = 0")
+        addPrimaryKey(changedLearners, learnerKey)
+        jdbcTemplate.execute("create table $changedLearningDeliveries as select ${learningDeliveryKey.joinToString()} from learning_delivery where 1 = 0")
+        addPrimaryKey(changedLearningDeliveries, learningDeliveryKey)
+        log.debug("Created staging tables for suffix $suffix")
+    }
+
+    /**
+     * Gives the staging tables the primary keys and indexes of the live tables, once every row has been loaded
+     * so that the load does not maintain them row by row. Keys left by an earlier attempt of the same import are
+     * replaced. When the staging tables are to become partitions they all need them, as the partitions' indexes;
+     * otherwise only the fingerprint tables do, for swapInChanges() to look the staged fingerprints up by key.
+     */
+    fun addKeys() {
+        for ((table, stagedTable) in stagedTables) {
+            if (!partitioned && table !in fingerprintTables) {
+                continue
+            }
+            val staged = nameOf(table)
+            addPrimaryKey(staged, stagedTable.primaryKey)
+            if (partitioned) {
+                stagedTable.indexes.forEachIndexed { i, columns ->
+                    jdbcTemplate.execute("create index if not exists ${staged}_idx$i on $staged (${columns.joinToString()})")
+                }
+            }
+        }
+        log.debug("Added keys to staging tables for suffix $suffix")
+    }
+
+    /**
+     * Tables created with create table ... as select have no NOT NULL constraints, which a primary key needs.
+     */
+    private fun addPrimaryKey(table: String, key: List<String>) {
+        jdbcTemplate.execute("alter table $table drop constraint if exists ${table}_pk")
+        for (column in key) {
+            jdbcTemplate.execute("alter table $table alter column $column set not null")
+        }
+        jdbcTemplate.execute("alter table $table add constraint ${table}_pk primary key (${key.joinToString()})")
+    }
+
+    /**
+     * Replaces the live rows for the year with the staged rows. Must be called inside the transaction which
+     * publishes the import, after addKeys().
+     */
+    fun swapIn(year: Int) {
+        if (partitioned) {
+            swapInPartitions(year)
+            return
+        }
+        for (table in stagedTables.keys.reversed()) {
+            jdbcTemplate.update("delete from $table where year = ?", year)
+        }
+        for ((table, stagedTable) in stagedTables) {
+            val columns = stagedTable.columns
+            val count = jdbcTemplate.update("insert into $table ($columns) select $columns from ${nameOf(table)}")
+            log.debug("Moved $count rows into $table for year $year")
+        }
+    }
+
+    /**
+     * Detaches and drops the year's partition of each live table and attaches the staging table in its place,
+     * under the partition's name. Only takes the locks for the length of these catalog changes, as the staging
+     * tables already have the partitions' indexes and year check.
+     */
+    private fun swapInPartitions(year: Int) {
+        for (table in stagedTables.keys) {
+            val partition = "${table}_$year"
+            if (jdbcTemplate.queryForObject("select to_regclass(?) is not null", Boolean::class.java, partition)!!) {
+                jdbcTemplate.execute("alter table $table detach partition $partition")
+                jdbcTemplate.execute("drop table $partition")
+            }
+            jdbcTemplate.execute("alter table ${nameOf(table)} rename to $partition")
+            jdbcTemplate.execute("alter table $table attach partition $partition for values in ($year)")
+            log.debug("Attached $partition to $table")
+        }
+    }
+
+    /**
+     * Registers the providers and learners already staged by an earlier attempt of the import.
+     */
+    fun registerStagedKeys(keyRegistry: OccupancyKeyRegistry) {
+        jdbcTemplate.query("select ukprn from ${nameOf("provider")}", RowCallbackHandler { rs ->
+            keyRegistry.registerProvider(rs.getInt(1))
+        })
+        jdbcTemplate.query("select ukprn, learner_reference_number from ${nameOf("learner")}", RowCallbackHandler { rs ->
+            keyRegistry.registerLearner(rs.getInt(1), rs.getString(2))
+        })
+    }
+
+    /**
+     * @return true if a previous import of the year left fingerprints to compare the staged data with
+     */
+    fun hasFingerprints(year: Int): Boolean {
+        return jdbcTemplate.queryForObject("select count(*) from learning_delivery_fingerprint where year = ?", Int::class.java, year)!! > 0
+    }
+
+    /**
+     * Applies the differences between the live rows for the year and the staged rows: learners and learning
+     * deliveries whose fingerprint changed are replaced, new ones are added and those no longer in the file are
+     * removed. Providers are few, so they are always replaced. Must be called inside the transaction which
+     * publishes the import.
+     */
+    fun swapInChanges(year: Int) {
+        jdbcTemplate.update("delete from provider where year = ?", year)
+        jdbcTemplate.update("insert into provider ($PROVIDER_COLUMNS) select $PROVIDER_COLUMNS from ${nameOf("provider")}")
+
+        findChanges(year, "learner_fingerprint", learnerKey, changedLearners)
+        replaceChanged(year, "learner", LEARNER_COLUMNS, learnerKey, changedLearners)
+        replaceChanged(year, "learner_fingerprint", LEARNER_FINGERPRINT_COLUMNS, learnerKey, changedLearners)
+
+        findChanges(year, "learning_delivery_fingerprint", learningDeliveryKey, changedLearningDeliveries)
+        replaceChanged(year, "earning_period", EARNING_PERIOD_COLUMNS, learningDeliveryKey, changedLearningDeliveries)
+        replaceChanged(year, "earning_profile", EARNING_PROFILE_COLUMNS, learningDeliveryKey, changedLearningDeliveries)
+        replaceChanged(year, "learning_delivery", LEARNING_DELIVERY_COLUMNS, learningDeliveryKey, changedLearningDeliveries)
+        replaceChanged(year, "learning_delivery_fingerprint", LEARNING_DELIVERY_FINGERPRINT_COLUMNS, learningDeliveryKey, changedLearningDeliveries)
+    }
+
+    /**
+     * Fills the changes table with the keys which are staged with a different or no previous fingerprint, and
+     * the keys which have a fingerprint for the year but are no longer staged. Both look fingerprints up by the
+     * primary key of the live or staged fingerprint table, which starts with the year.
+     */
+    private fun findChanges(year: Int, fingerprintTable: String, key: List<String>, changesTable: String) {
+        val columns = key.joinToString()
+        jdbcTemplate.update("insert into $changesTable ($columns) select ${qualified("s", key)} from ${nameOf(fingerprintTable)} s " +
+                "where not exists (select 1 from $fingerprintTable f where f.year = ? and ${sameKey("f", "s", key)} and f.fingerprint = s.fingerprint)", year)
+        jdbcTemplate.update("insert into $changesTable ($columns) select ${qualified("f", key)} from $fingerprintTable f " +
+                "where f.year = ? and not exists (select 1 from ${nameOf(fingerprintTable)} s where s.year = f.year and ${sameKey("f", "s", key)})", year)
+    }
+
+    private fun replaceChanged(year: Int, table: String, columns: String, key: List<String>, changesTable: String) {
+        val deleted = jdbcTemplate.update("delete from $table t where t.year = ? " +
+                "and exists (select 1 from $changesTable c where ${sameKey("c", "t", key)})", year)
+        val inserted = jdbcTemplate.update("insert into $table ($columns) select $columns from ${nameOf(table)} t " +
+                "where exists (select 1 from $changesTable c where ${sameKey("c", "t", key)})")
+        log.debug("Replaced $deleted rows with $inserted rows in $table for year $year")
+    }
+
+    private fun qualified(alias: String, key: List<String>): String {
+        return key.joinToString { "$alias.$it" }
+    }
+
+    private fun sameKey(left: String, right: String, key: List<String>): String {
+        return key.joinToString(" and ") { "$left.$it = $right.$it" }
+    }
+
+    fun drop() {
+        for (table in stagedTables.keys) {
+            jdbcTemplate.execute("drop table if exists ${nameOf(table)}")
+        }
+        jdbcTemplate.execute("drop table if exists $changedLearners")
+        jdbcTemplate.execute("drop table if exists $changedLearningDeliveries")
+    }
+
+}
@@ -8,6 +8,7 @@
 package uk.gov.london.ilr.learner
 
 import org.apache.commons.io.input.BOMInputStream
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 import uk.gov.london.common.CSVFile
 import uk.gov.london.ilr.audit.AuditService
@@ -16,10 +17,7 @@ import uk.gov.london.ilr.file.*
 import uk.gov.london.ilr.security.User.SYSTEM_USER
 import uk.gov.london.ilr.security.UserService
 import java.io.InputStream
-import java.io.StringWriter
-import java.text.ParseException
-import java.text.SimpleDateFormat
-import java.time.OffsetDateTime
+import java.io.Writer
 import java.util.*
 import kotlin.collections.HashSet
 import kotlin.collections.set
@@ -48,6 +46,11 @@ val SUPPLEMENTARY_DATA_COLUMNS = listOf(
         ESF_LEAVE_DATE)
         .map{ i -> i.toUpperCase()}
 
+const val SUPPLEMENTARY_DATA_TABLE_COLUMNS = "ukprn, learner_reference_number, investment_priority_claimed_under, " +
+        "has_basic_skills, is_homeless, highest_educational_attainment_at_esf_start, " +
+        "progressing_into_education_or_training_as_esf_result, start_date_for_education_or_training_esf_result, " +
+        "has_left_esf_program, esf_leave_date, last_supplementary_data_upload"
+
 val validSupplementaryDataValues = mapOf(
         INVEST_PRIOR_CLAIM_UNDER to setOf("1.1", "1.2", "2.1"),
         HAS_BASIC_SKILLS to setOf("1", "2", "3"),
@@ -57,14 +60,39 @@ val validSupplementaryDataValues = mapOf(
         HAS_LEFT_ESF_PROGRAM to setOf("1", "2")
 )
 
+/**
+ * Positions of the supplementary data columns in one file, resolved once from the header row.
+ */
+class SupplementaryDataColumns(columns: CsvColumns) {
+    val learnerReferenceNumber = columns.indexOf(LRN)
+    val ukprn = columns.indexOf(UKPRN)
+    val investmentPriorityClaimedUnder = columns.indexOf(INVEST_PRIOR_CLAIM_UNDER)
+    val hasBasicSkills = columns.indexOf(HAS_BASIC_SKILLS)
+    val isHomeless = columns.indexOf(IS_HOMELESS)
+    val highestEducationalAttainmentAtEsfStart = columns.indexOf(HIGHEST_EDUCATIONAL_ATTAINMENT_AT_ESF_START)
+    val progressingIntoEducationOrTrainingAsEsfResult = columns.indexOf(PROGRESSING_INTO_EDUCATION_OR_TRAINING_AS_ESF_RESULT)
+    val startDateForEducationOrTrainingEsfResult = columns.indexOf(START_DATE_FOR_EDUCATION_OR_TRAINING_ESF_RESULT)
+    val hasLeftEsfProgram = columns.indexOf(HAS_LEFT_ESF_PROGRAM)
+    val esfLeaveDate = columns.indexOf(ESF_LEAVE_DATE)
+}
+
 @Service
 class SupplementaryDataService(val supplementaryDataRepository: SupplementaryDataRepository,
                                val learnerDeliveryRepository: LearningDeliveryRepository,
                                val userService: UserService,
                                val fileService: FileService,
                                val auditService: AuditService,
+                               val importPipelineFactory: ImportPipelineFactory,
+                               val importProgressTracker: ImportProgressTracker,
+                               val bulkLoaderFactory: BulkLoaderFactory,
                                val environment: Environment) {
 
+    /**
+     * Most learner reference numbers held at once while checking that the learners in a file exist.
+     */
+    @Value("\${ilr.supplementary-data.max-cached-learners}")
+    var maxCachedLearners: Int = 500000
+
     fun getLearnerLatestSupplementaryData(learnerRefNumber: String?): SupplementaryData? {
         return supplementaryDataRepository.findLatestSupplementaryDataRecord(learnerRefNumber)
     }
@@ -95,19 +123,18 @@ class SupplementaryDataService(val supplementaryDataRepository: SupplementaryDat
         }
     }
 
-    private fun validateUserAccessToUpload(ukprn: Int, errorMessages: MutableMap<String, String>) {
+    /**
+     * @return the UKPRNs the current user may upload supplementary data for, or null if they may upload it for any
+     */
+    private fun allowedUkprns(): Set<Int>? {
         val currentUser = userService.currentUser
-
-        if(environment.isTestEnvironment && currentUser.username == SYSTEM_USER) return
-
-        if(!currentUser.isGla && !currentUser.ukprns.contains(ukprn)) {
-            auditService.auditCurrentUserActivity("Supplementary file upload failed for UKPRN ${ukprn} because user ${currentUser.username} " +
-                    "doesn't have access to the organisation(s) with stated UKPRN.")
-            errorMessages["UKPRN"] = "File upload failed as you do not have access to the organisation(s) with stated UKPRN number(s)."
+        if (currentUser.isGla || (environment.isTestEnvironment && currentUser.username == SYSTEM_USER)) {
+            return null
         }
+        return currentUser.ukprns
     }
 
-    private fun createErrorCSVFile(originalHeaders: Set<String>, writer : StringWriter) : CSVFile {
+    private fun createErrorCSVFile(originalHeaders: Set<String>, writer : Writer) : CSVFile {
         val headers = LinkedHashSet<String>()
         headers.addAll(originalHeaders)
         headers.add(ERROR_COLUMN)
@@ -115,92 +142,71 @@ class SupplementaryDataService(val supplementaryDataRepository: SupplementaryDat
     }
 
     private fun processSupplementaryDataRows(dataImport: DataImport, csvFile: CSVFile, uploadResult: UploadResult) {
+        SpooledText().use { errorFile -> processSupplementaryDataRows(dataImport, csvFile, uploadResult, errorFile) }
+    }
+
+    /**
+     * Every row is echoed to the error file, with its errors, as it is checked. The error file is only saved if
+     * at least one row has an error.
+     */
+    private fun processSupplementaryDataRows(dataImport: DataImport, csvFile: CSVFile, uploadResult: UploadResult, errorFile: SpooledText) {
+        val progress = importProgressTracker.progressOf(dataImport)
         val now = environment.now()
         val allErrorMessages = mutableSetOf<String>()
         val headers = csvFile.headers.minusElement(ERROR_COLUMN)
-        val writer = StringWriter()
-        val errorCSVFile = createErrorCSVFile(headers, writer)
-
-
-        while (csvFile.nextRow()) {
-            val errorFileColumns = mutableMapOf<String, Any>()
-            val errorMessages = mutableMapOf<String, String>()
-
-            for (header in headers) {
-                errorFileColumns[header] = csvFile.getString(header)
-            }
-
-            val learnerReferenceNumber = csvFile.getString(LRN)
-            val ukprn = csvFile.getInteger(UKPRN)
-
-            validateUserAccessToUpload(csvFile.getInteger(UKPRN), errorMessages)
-            validateSupplementaryData(ukprn, learnerReferenceNumber, csvFile, errorMessages)
-
-            if (errorMessages.isEmpty()) {
-                processSupplementaryData(csvFile, ukprn, learnerReferenceNumber, now)
-                uploadResult.numberOfRecords++
-            } else {
-                allErrorMessages.addAll(errorMessages.values)
-                errorFileColumns[ERROR_COLUMN] = errorMessages.keys.joinToString(separator = ", ")
+        val errorCSVFile = createErrorCSVFile(headers, errorFile.writer)
+
+        val csvColumns = CsvColumns(csvFile.headers)
+        val columns = SupplementaryDataColumns(csvColumns)
+        val validator = SupplementaryDataValidator(columns, headers, allowedUkprns(), now)
+        val knownLearners = KnownLearners(learnerDeliveryRepository, maxCachedLearners)
+        val upserter = bulkLoaderFactory.newUpserter()
+
+        progress.phase(ImportPhase.LOAD)
+        importPipelineFactory.newPipeline().run(rowReader(csvFile, csvColumns), validator::validate, { rows ->
+            val validRecords = ArrayList<SupplementaryData>(rows.size)
+            for (row in rows) {
+                val errorFileColumns = LinkedHashMap<String, Any?>(row.errorFileValues)
+                val errorMessages = LinkedHashMap<String, String>(row.fieldErrors)
+
+                validateLearnerExists(row.ukprn, row.learnerReferenceNumber, knownLearners, errorMessages)
+
+                if (errorMessages.isEmpty()) {
+                    validRecords.add(row.supplementaryData!!)
+                    uploadResult.numberOfRecords++
+                } else {
+                    allErrorMessages.addAll(errorMessages.values)
+                    errorFileColumns[ERROR_COLUMN] = errorMessages.keys.joinToString(separator = ", ")
+                }
+                errorCSVFile.writeValues(errorFileColumns)
             }
-            errorCSVFile.writeValues(errorFileColumns)
+            upserter.upsert("supplementary_data", SUPPLEMENTARY_DATA_TABLE_COLUMNS, "ukprn, learner_reference_number",
+                    validRecords, ::supplementaryDataValues)
+            progress.addRows(rows.size)
+        })
+        progress.phase(ImportPhase.FINALISE)
+        if (validator.deniedUkprns.isNotEmpty()) {
+            auditService.auditCurrentUserActivity("Supplementary file upload failed for UKPRN ${validator.deniedUkprns.sorted().joinToString()} " +
+                    "because user ${userService.currentUser.username} doesn't have access to the organisation(s) with stated UKPRN.")
         }
         if (allErrorMessages.isNotEmpty()) {
             uploadResult.errorMessages.addAll(allErrorMessages)
-            fileService.saveFile(dataImport.id, ERROR_FILE_TYPE, ".csv", -1, writer.toString())
+            fileService.saveFile(dataImport.id, ERROR_FILE_TYPE, ".csv", -1, errorFile)
         }
     }
 
 
-    private fun processSupplementaryData(csvRow: CSVFile, ukprn: Int, learnerReferenceNumber: String, now: OffsetDateTime) {
-        supplementaryDataRepository.save(SupplementaryData(
-                id = SupplementaryDataPK(ukprn, learnerReferenceNumber),
-                investmentPriorityClaimedUnder = csvRow.getString(INVEST_PRIOR_CLAIM_UNDER),
-                hasBasicSkills = csvRow.getInteger(HAS_BASIC_SKILLS),
-                isHomeless = csvRow.getInteger(IS_HOMELESS),
-                highestEducationalAttainmentAtEsfStart = csvRow.getInteger(HIGHEST_EDUCATIONAL_ATTAINMENT_AT_ESF_START),
-                progressingIntoEducationOrTrainingAsEsfResult = csvRow.getInteger(PROGRESSING_INTO_EDUCATION_OR_TRAINING_AS_ESF_RESULT),
-                startDateForEducationOrTrainingEsfResult = csvRow.getDate(START_DATE_FOR_EDUCATION_OR_TRAINING_ESF_RESULT, "yyyy-MM-dd"),
-                hasLeftEsfProgram = csvRow.getInteger(HAS_LEFT_ESF_PROGRAM),
-                esfLeaveDate = csvRow.getDate(ESF_LEAVE_DATE, "yyyy-MM-dd"),
-                lastSupplementaryDataUpload= now))
+    private fun supplementaryDataValues(s: SupplementaryData): Array<Any?> {
+        return arrayOf(s.id.ukprn, s.id.learnerReferenceNumber, s.investmentPriorityClaimedUnder, s.hasBasicSkills,
+                s.isHomeless, s.highestEducationalAttainmentAtEsfStart, s.progressingIntoEducationOrTrainingAsEsfResult,
+                s.startDateForEducationOrTrainingEsfResult, s.hasLeftEsfProgram, s.esfLeaveDate,
+                s.lastSupplementaryDataUpload)
     }
 
-    private fun validateSupplementaryData(ukprn: Int , learnerReferenceNumber: String, csvRow: CSVFile, errorMessages: MutableMap<String, String>) {
-        validateFieldContent(csvRow, INVEST_PRIOR_CLAIM_UNDER, errorMessages)
-        validateFieldContent(csvRow, HAS_BASIC_SKILLS, errorMessages)
-        validateFieldContent(csvRow, IS_HOMELESS, errorMessages)
-        validateFieldContent(csvRow, HIGHEST_EDUCATIONAL_ATTAINMENT_AT_ESF_START, errorMessages)
-        validateFieldContent(csvRow, PROGRESSING_INTO_EDUCATION_OR_TRAINING_AS_ESF_RESULT, errorMessages)
-        validateDateField(csvRow, START_DATE_FOR_EDUCATION_OR_TRAINING_ESF_RESULT, errorMessages)
-        validateFieldContent(csvRow, HAS_LEFT_ESF_PROGRAM, errorMessages)
-        validateDateField(csvRow, ESF_LEAVE_DATE, errorMessages)
-
-        if (learnerDeliveryRepository.countAllByIdUkprnAndIdLearnerReferenceNumber(ukprn, learnerReferenceNumber) == 0) {
+    private fun validateLearnerExists(ukprn: Int, learnerReferenceNumber: String, knownLearners: KnownLearners, errorMessages: MutableMap<String, String>) {
+        if (!knownLearners.exists(ukprn, learnerReferenceNumber)) {
             errorMessages["Learner reference number"] = "A record for Learner reference number " + learnerReferenceNumber +
                     " doesn't exist for UKPRN " + ukprn + ", valid Learner reference numbers must be uploaded"
         }
     }
-
-    fun validateFieldContent(csvRow: CSVFile, columnName: String, errorMessages: MutableMap<String, String>) {
-        val value = csvRow.getString(columnName)
-        val validValues = validSupplementaryDataValues[columnName]
-        if (value !in validValues!!) {
-            addErrorMessage(columnName, validValues.joinToString(), errorMessages)
-        }
-    }
-
-    fun validateDateField(csvRow: CSVFile, columnName: String, errorMessages: MutableMap<String, String>) {
-        val value = csvRow.getString(columnName)
-        try {
-            SimpleDateFormat("yyyy-MM-dd").parse(value)
-        } catch (e: ParseException) {
-            addErrorMessage(columnName, "YYYY-MM-DD", errorMessages)
-        }
-    }
-
-    private fun addErrorMessage(columnName: String, expectedFormat: Any, errorMessages: MutableMap<String,String>) {
-        errorMessages[columnName] = "File upload failed as one or more cells in \"$columnName\" column contain(s) information " +
-                "which is not in the specified format \"$expectedFormat\"."
-    }
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) Greater London Authority, 2016.
+ *
+ * This source code is licensed under the Open Government Licence 3.0.
+ *
+ * http://www.nationalarchives.gov.uk/doc/open-government-licence/version/3/
+ */
+package uk.gov.london.ilr.learner
+
+import uk.gov.london.ilr.file.CsvRow
+import uk.gov.london.ilr.file.FieldDecoders
+import uk.gov.london.ilr.file.INVALID_DATE
+import uk.gov.london.ilr.file.MISSING_DATE
+import java.time.OffsetDateTime
+import java.util.concurrent.ConcurrentHashMap
+
+const val UKPRN_ACCESS_ERROR = "File upload failed as you do not have access to the organisation(s) with stated UKPRN number(s)."
+
+/**
+ * A supplementary data row after its cell values and the user's access to its UKPRN have been checked, ready
+ * for the learner check which needs the database.
+ */
+class SupplementaryDataRow(val csvRow: CsvRow,
+                           val ukprn: Int,
+                           val learnerReferenceNumber: String,
+                           val errorFileValues: Map<String, String?>,
+                           val fieldErrors: Map<String, String>,
+                           val supplementaryData: SupplementaryData?)
+
+/**
+ * Checks one cell: its value must be one of validValues, or a yyyy-MM-dd date when validValues is null.
+ */
+private class FieldCheck(val column: Int, val columnName: String, val validValues: Set<String>?) {
+
+    val errorMessage = "File upload failed as one or more cells in \"$columnName\" column contain(s) information " +
+            "which is not in the specified format \"${validValues?.joinToString() ?: "YYYY-MM-DD"}\"."
+
+    fun isValid(csvRow: CsvRow): Boolean {
+        if (validValues != null) {
+            return csvRow.getString(column) in validValues
+        }
+        val date = FieldDecoders.decodeIsoDate(csvRow.getString(column))
+        return date != MISSING_DATE && date != INVALID_DATE
+    }
+
+}
+
+/**
+ * Checks supplementary data rows against what is known about an upload before it is read: the columns of the
+ * file, the valid codes of each column and the UKPRNs the uploading user may load data for. Everything is
+ * resolved up front on the uploading thread, so validate() needs neither the database nor the security context
+ * and runs on the import pipeline's worker threads.
+ *
+ * @param allowedUkprns the UKPRNs the user may load data for, or null if they may load data for any
+ */
+class SupplementaryDataValidator(private val columns: SupplementaryDataColumns,
+                                 private val errorFileHeaders: Collection<String>,
+                                 private val allowedUkprns: Set<Int>?,
+                                 private val now: OffsetDateTime) {
+
+    private val fieldChecks = listOf(
+            FieldCheck(columns.investmentPriorityClaimedUnder, INVEST_PRIOR_CLAIM_UNDER, validSupplementaryDataValues[INVEST_PRIOR_CLAIM_UNDER]),
+            FieldCheck(columns.hasBasicSkills, HAS_BASIC_SKILLS, validSupplementaryDataValues[HAS_BASIC_SKILLS]),
+            FieldCheck(columns.isHomeless, IS_HOMELESS, validSupplementaryDataValues[IS_HOMELESS]),
+            FieldCheck(columns.highestEducationalAttainmentAtEsfStart, HIGHEST_EDUCATIONAL_ATTAINMENT_AT_ESF_START, validSupplementaryDataValues[HIGHEST_EDUCATIONAL_ATTAINMENT_AT_ESF_START]),
+            FieldCheck(columns.progressingIntoEducationOrTrainingAsEsfResult, PROGRESSING_INTO_EDUCATION_OR_TRAINING_AS_ESF_RESULT, validSupplementaryDataValues[PROGRESSING_INTO_EDUCATION_OR_TRAINING_AS_ESF_RESULT]),
+            FieldCheck(columns.startDateForEducationOrTrainingEsfResult, START_DATE_FOR_EDUCATION_OR_TRAINING_ESF_RESULT, null),
+            FieldCheck(columns.hasLeftEsfProgram, HAS_LEFT_ESF_PROGRAM, validSupplementaryDataValues[HAS_LEFT_ESF_PROGRAM]),
+            FieldCheck(columns.esfLeaveDate, ESF_LEAVE_DATE, null))
+
+    /**
+     * UKPRNs found in the file which the user may not load data for, so that they can be audited once rather
+     * than once per row.
+     */
+    val deniedUkprns: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+
+    fun validate(csvRow: CsvRow): SupplementaryDataRow {
+        val learnerReferenceNumber = csvRow.getString(columns.learnerReferenceNumber)!!
+        val ukprn = csvRow.getInteger(columns.ukprn)
+        val fieldErrors = LinkedHashMap<String, String>()
+
+        if (allowedUkprns != null && !allowedUkprns.contains(ukprn)) {
+            deniedUkprns.add(ukprn)
+            fieldErrors["UKPRN"] = UKPRN_ACCESS_ERROR
+        }
+
+        for (check in fieldChecks) {
+            if (!check.isValid(csvRow)) {
+                fieldErrors[check.columnName] = check.errorMessage
+            }
+        }
+
+        val supplementaryData = if (fieldErrors.isEmpty()) createSupplementaryData(csvRow, ukprn, learnerReferenceNumber) else null
+        return SupplementaryDataRow(csvRow, ukprn, learnerReferenceNumber, csvRow.valuesFor(errorFileHeaders), fieldErrors, supplementaryData)
+    }
+
+    private fun createSupplementaryData(csvRow: CsvRow, ukprn: Int, learnerReferenceNumber: String): SupplementaryData {
+        return SupplementaryData(
+                id = SupplementaryDataPK(ukprn, learnerReferenceNumber),
+                investmentPriorityClaimedUnder = csvRow.getString(columns.investmentPriorityClaimedUnder)!!,
+                hasBasicSkills = csvRow.getInteger(columns.hasBasicSkills),
+                isHomeless = csvRow.getInteger(columns.isHomeless),
+                highestEducationalAttainmentAtEsfStart = csvRow.getInteger(columns.highestEducationalAttainmentAtEsfStart),
+                progressingIntoEducationOrTrainingAsEsfResult = csvRow.getInteger(columns.progressingIntoEducationOrTrainingAsEsfResult),
+                startDateForEducationOrTrainingEsfResult = csvRow.getIsoDate(columns.startDateForEducationOrTrainingEsfResult)!!,
+                hasLeftEsfProgram = csvRow.getInteger(columns.hasLeftEsfProgram),
+                esfLeaveDate = csvRow.getIsoDate(columns.esfLeaveDate)!!,
+                lastSupplementaryDataUpload = now)
+    }
+
+}
@@ -7,7 +7,8 @@
  */
 package uk.gov.london.ilr.report
 
-import org.springframework.http.MediaType
+import org.springframework.core.io.Resource
+import org.springframework.http.HttpHeaders
 import org.springframework.http.ResponseEntity
 import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.stereotype.Controller
@@ -15,8 +16,12 @@ import org.springframework.ui.Model
 import org.springframework.ui.set
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestHeader
+import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RequestMethod
 import org.springframework.web.bind.annotation.RequestParam
 import uk.gov.london.ilr.file.ERROR_FILE_TYPE
+import uk.gov.london.ilr.file.FileContents
 import uk.gov.london.ilr.file.FileService
 import java.io.OutputStreamWriter
 import java.text.SimpleDateFormat
@@ -39,25 +44,34 @@ class ReportController(val reportService: ReportService,
     }
 
     @PreAuthorize("isAuthenticated()")
-    @PostMapping("/download", produces = ["text/csv"])
+    @RequestMapping("/download", method = [RequestMethod.GET, RequestMethod.POST], produces = ["text/csv"])
     fun downloadReport(@RequestParam fileType: String,
                        @RequestParam fileSuffix: String,
-                       @RequestParam ukprn: Int) : ResponseEntity<String> {
+                       @RequestParam ukprn: Int,
+                       @RequestHeader requestHeaders: HttpHeaders) : ResponseEntity<Resource> {
 
         val file = fileService.getFileEntity(fileType, fileSuffix, ukprn)
         return if (file == null) {
-            buildResponseEntity("error.txt", "text/plain", "No data validation issues for the selected ILR Return period")
+            FileContents.download("error.txt", "text/plain", "No data validation issues for the selected ILR Return period")
         }
         else {
-            buildResponseEntity("$fileType $ukprn $fileSuffix.csv", "text/csv", file.content)
+            FileContents.download("$fileType $ukprn $fileSuffix.csv", "text/csv", fileService.contentOf(file), requestHeaders)
         }
     }
 
-    private fun buildResponseEntity(fileName: String, contentType: String, content: String) : ResponseEntity<String> {
-        return ResponseEntity.ok()
-                .header("Content-disposition", "attachment;filename=$fileName")
-                .contentType(MediaType.parseMediaType(contentType))
-                .body(content)
+    /**
+     * Streams a zip of the files of a type for a return period, for every UKPRN or just those given.
+     */
+    @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")
+    @GetMapping("/downloadAll", produces = ["application/zip"])
+    fun downloadAllReports(@RequestParam fileType: String,
+                           @RequestParam fileSuffix: String,
+                           @RequestParam(required = false) ukprns: Set<Int>?,
+                           response: HttpServletResponse) {
+        response.addHeader("Content-disposition", "attachment;filename=$fileType $fileSuffix.zip")
+        response.contentType = "application/zip"
+        fileService.exportZip(fileType, fileSuffix, ukprns, response.outputStream)
+        response.flushBuffer()
     }
 
     @PreAuthorize("hasAnyRole('OPS_ADMIN', 'GLA_ORG_ADMIN', 'GLA_SPM', 'GLA_PM', 'GLA_FINANCE', 'GLA_READ_ONLY')")